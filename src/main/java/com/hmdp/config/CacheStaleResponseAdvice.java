@@ -0,0 +1,36 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheStaleHolder;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+/**
+ * 返回了过期的缓存数据时（数据库慢或者熔断中），在响应头里告诉调用方过期了多久（秒）
+ */
+@RestControllerAdvice
+public class CacheStaleResponseAdvice implements ResponseBodyAdvice<Object> {
+
+    public static final String STALE_HEADER = "X-Cache-Stale-Seconds";
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return true;
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        Long staleMillis = CacheStaleHolder.getStaleMillis();
+        if (staleMillis != null) {
+            response.getHeaders().set(STALE_HEADER, String.valueOf(staleMillis / 1000));
+            CacheStaleHolder.remove();
+        }
+        return body;
+    }
+}
@@ -1,6 +1,7 @@
 package com.hmdp.config;
 
 import com.hmdp.dto.Result;
+import com.hmdp.utils.DbUnavailableException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
@@ -9,6 +10,13 @@ import org.springframework.web.bind.annotation.RestControllerAdvice;
 @RestControllerAdvice
 public class WebExceptionAdvice {
 
+    @ExceptionHandler(DbUnavailableException.class)
+    public Result handleDbUnavailableException(DbUnavailableException e) {
+        //数据库熔断中，缓存里也没有，不用打印堆栈
+        log.warn(e.getMessage());
+        return Result.fail("服务繁忙，请稍后再试");
+    }
+
     @ExceptionHandler(RuntimeException.class)
     public Result handleRuntimeException(RuntimeException e) {
         log.error(e.toString(), e);
@@ -6,10 +6,12 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.ShopBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -23,6 +25,8 @@ public class ShopController {
 
     @Resource
     public IShopService shopService;
+    @Resource
+    private ShopBloomFilter shopBloomFilter;
 
     /**
      * 根据id查询商铺信息
@@ -35,6 +39,18 @@ public class ShopController {
         return shopService.queryById(id);
     }
 
+    /**
+     * 根据id批量查询商铺信息
+     * @param ids 商铺id，逗号分隔
+     * @param fields 只要这些字段，逗号分隔，例如 name,images,score,avgPrice（列表、卡片用）；不传返回完整的商铺
+     * @return 商铺列表，不存在的商铺不返回
+     */
+    @GetMapping("/batch")
+    public Result queryShopByIds(@RequestParam("ids") List<Long> ids,
+                                 @RequestParam(value = "fields", required = false) List<String> fields) {
+        return shopService.queryByIds(ids, fields);
+    }
+
     /**
      * 新增商铺信息
      * @param shop 商铺数据
@@ -44,6 +60,8 @@ public class ShopController {
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
         shopService.save(shop);
+        // 加入布隆过滤器
+        shopBloomFilter.add(shop.getId());
         // 返回店铺id
         return Result.ok(shop.getId());
     }
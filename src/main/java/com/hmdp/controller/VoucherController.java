@@ -42,6 +42,16 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 查询秒杀券在Redis里的剩余库存（所有分片的合计）
+     * @param voucherId 优惠券id
+     * @return 剩余库存
+     */
+    @GetMapping("/seckill/stock/{id}")
+    public Result querySeckillStock(@PathVariable("id") Long voucherId) {
+        return voucherService.querySeckillStock(voucherId);
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
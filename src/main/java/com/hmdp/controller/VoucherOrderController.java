@@ -4,6 +4,7 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -26,4 +27,14 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询秒杀订单状态（下单是异步的，客户端拿订单id轮询）
+     * @param orderId 订单id
+     * @return QUEUED / PERSISTED / FAILED / NOT_FOUND
+     */
+    @GetMapping("{id}/status")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
 }
@@ -88,6 +88,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private LocalDateTime endTime;
 
+    /**
+     * 秒杀库存拆成几个分片，热点券用，不填就是1
+     */
+    @TableField(exist = false)
+    private Integer shards;
+
     /**
      * 创建时间
      */
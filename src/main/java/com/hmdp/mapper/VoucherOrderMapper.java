@@ -2,6 +2,10 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Collection;
+import java.util.List;
 
 /**
  * <p>
@@ -11,4 +15,9 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    int insertBatch(@Param("list") List<VoucherOrder> list);
+
+    List<VoucherOrder> selectUnpaidForUpdate(@Param("ids") Collection<Long> ids);
+
+    int cancelById(@Param("id") Long id);
 }
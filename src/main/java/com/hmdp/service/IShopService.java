@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -14,5 +16,7 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    Result queryByIds(List<Long> ids, List<String> fields);
+
     Result update(Shop shop);
 }
@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -12,4 +15,10 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
+
+    boolean createVoucherOrder(VoucherOrder voucherOrder);
+
+    Result queryOrderStatus(Long orderId);
+
+    List<VoucherOrder> cancelUnpaidOrders(Collection<Long> orderIds);
 }
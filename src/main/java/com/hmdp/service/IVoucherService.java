@@ -15,4 +15,6 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    Result querySeckillStock(Long voucherId);
 }
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
@@ -10,15 +11,26 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRebuildExecutor;
+import com.hmdp.utils.InvalidateCache;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.SystemConstants;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 import static com.hmdp.utils.RedisConstants.*;
 
 /**
@@ -35,6 +47,11 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     //封装好的工具类
     @Resource
     private CacheClient cacheClient;
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+    //店铺详情用stale-while-revalidate，数据库慢或挂了时继续返回旧数据
+    @Value("${hmdp.cache.shop.stale-while-revalidate:false}")
+    private boolean staleWhileRevalidate;
     /**
      * 通过店铺id查询店铺数据
      * @param id 传入店铺id
@@ -42,10 +59,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      */
     @Override
     public Result queryById(Long id) {
-        //缓存穿透
-        Shop shop = queryWithPassThrough(id);
+        //缓存穿透（开启本地缓存时先查本地）
+        //Shop shop = queryWithPassThrough(id);
         //id2->getById(id2) 等效 this::getById
-        //Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+        Shop shop = staleWhileRevalidate
+                ? cacheClient.queryWithStaleWhileRevalidate(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES)
+                : cacheClient.queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
         //互斥锁解决缓存击穿
         //Shop shop = queryWithMutex(id);
 
@@ -59,9 +78,43 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    /**
+     * 批量查询店铺，一次MGET，未命中的一次查数据库
+     * 传了fields时只查这些字段：店铺按字段存成hash，一个管道HMGET，不传输用不到的大字段
+     * @param ids 传入店铺id
+     * @param fields 传入要的字段，为空时返回完整的店铺
+     * @return 返回店铺列表，按传入的顺序，不存在的店铺不返回
+     */
+    @Override
+    public Result queryByIds(List<Long> ids, List<String> fields) {
+        if (ids == null || ids.isEmpty()) {
+            return Result.ok(new ArrayList<>());
+        }
+        if (ids.size() > SystemConstants.MAX_BATCH_SIZE) {
+            return Result.fail("一次最多查询" + SystemConstants.MAX_BATCH_SIZE + "个店铺");
+        }
+        Function<Collection<Long>, Map<Long, Shop>> dbFallback =
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+        if (fields != null && !fields.isEmpty()) {
+            //只允许Shop的属性，id总是返回
+            Set<String> projection = new LinkedHashSet<>();
+            projection.add("id");
+            for (String field : fields) {
+                if (BeanUtil.getBeanDesc(Shop.class).getProp(field) == null) {
+                    return Result.fail("不支持的字段：" + field);
+                }
+                projection.add(field);
+            }
+            Map<Long, Shop> shops = cacheClient.queryFieldsBatch(CACHE_SHOP_HASH_KEY, ids, Shop.class, projection,
+                    dbFallback, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            return Result.ok(new ArrayList<>(shops.values()));
+        }
+        Map<Long, Shop> shops = cacheClient.queryBatchWithPassThrough(CACHE_SHOP_KEY, ids, Shop.class,
+                dbFallback, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return Result.ok(new ArrayList<>(shops.values()));
+    }
+
     //TODO 封装成工具类后，之后的代码都可以不要了
-    //这里开有一个缓存池提供逻辑过期功能用
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
     /**
      * 通过逻辑过期解决缓存击穿
      * @param id 传入店铺id
@@ -94,74 +147,33 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //6.2、判断是否获取锁成功
         boolean isLock = tryLock(lockKey);
         if(isLock){
-            //6.3、成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(()->{
+            //6.3、成功，交给重建线程池，实现缓存重建
+            boolean submitted = cacheRebuildExecutor.submit(CACHE_SHOP_KEY, key, ()->{
                 //重建缓存
                 try {
                     this.saveShop2Redis(id,10L);
-                }catch (Exception e){
-                    throw new RuntimeException(e);
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
                 }finally {
                     //释放锁
                     unlock(lockKey);
                 }
             });
+            if (!submitted) {
+                unlock(lockKey);
+            }
         }
         //6.4、返回过期的商铺信息
         return shop;
     }
 
+    /**
+     * 互斥锁解决缓存击穿，同一个店铺的并发请求在本节点合并成一次重建
+     * @param id 传入店铺id
+     * @return 返回Shop类型
+     */
     public Shop queryWithMutex(Long id){
-        String key = CACHE_SHOP_KEY + id;
-        //1、从redis查询店铺
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2、判断是否存在
-        if(StrUtil.isNotBlank(shopJson)){
-            //3、存在，直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        //判断命中知否为空值
-        if (shopJson != null) {
-            //TODO 命中，缓存通过后，需要判断缓存店铺信息是否为空（防止缓存穿透）
-            return null;
-        }
-        //TODO 4、实现缓存重建
-        Shop shop = null;
-        //4.1获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-
-        try {
-            boolean isLock = tryLock(lockKey);
-            //4.2判断是否获取成功
-            if(!isLock){
-                //4.3失败，则休眠重试
-                Thread.sleep(50);
-                //这里递归，直到命中
-                return queryWithMutex(id);
-            }
-
-            //4.4锁通过后,成功，根据id查询数据库
-            shop = getById(id);
-                //因为查询的是本地数据库，很快，所以这里模拟一下延迟
-            Thread.sleep(200);
-
-            //5、查询数据库还不存在，返回错误
-            if(shop==null){
-                //TODO 如果店铺信息在redis和MySQL中都不存在，则向redis中加入空缓存（防止缓存穿透）
-                stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
-                return null;
-            }
-            //6、存在，写入redis
-            stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop),
-                    CACHE_SHOP_TTL+Math.abs(new Random().nextInt(30)), TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
-            //7、释放互斥锁
-            unlock(lockKey);
-        }
-        //8、返回
-        return shop;
+        return cacheClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     /**
@@ -238,6 +250,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * @return 返回Result
      */
     @Override
+    @Transactional
+    @InvalidateCache(prefix = {CACHE_SHOP_KEY, CACHE_SHOP_HASH_KEY}, key = "#shop.id")
     public Result update(Shop shop) {
         Long id = shop.getId();
         if(id == null){
@@ -245,8 +259,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //1、更新数据库
         updateById(shop);
-        //2、删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY+id);
+        //2、事务提交以后删除缓存，过一会再删一次（见@InvalidateCache）
         return Result.ok("店铺更新成功");
     }
 }
@@ -1,11 +1,61 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.LocalSeckillPipeline;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillSoldOutMarker;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillWindowGate;
+import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.VoucherOrderBatchWriter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -13,10 +63,435 @@ import org.springframework.stereotype.Service;
  * </p>
  *
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+    @Resource
+    private RedisIdWorker redisIdWorker;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private VoucherOrderBatchWriter voucherOrderBatchWriter;
+    @Resource
+    private SeckillSoldOutMarker seckillSoldOutMarker;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillWindowGate seckillWindowGate;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    //本地模式（hmdp.seckill.mode=local）才有
+    @Autowired(required = false)
+    private LocalSeckillPipeline localSeckillPipeline;
+
+    /**
+     * 消费者名称，多节点部署时每个节点要不一样，默认用主机名
+     */
+    @Value("${hmdp.seckill.consumer-name:}")
+    private String consumerName;
+    /**
+     * 一条消息最多投递多少次，超过后移到死信队列（stream.orders.dlq），不再阻塞消费者
+     */
+    @Value("${hmdp.seckill.max-deliveries:10}")
+    private long maxDeliveries;
+
+    //秒杀的lua脚本：判断库存、一人一单、扣库存、发消息到队列，一次完成
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+    }
+    //分片库存的秒杀脚本，只操作用户所属的分片
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+    static {
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
+    }
+    //从一个分片拿一个库存
+    private static final DefaultRedisScript<Long> STOCK_TAKE_SCRIPT;
+    static {
+        STOCK_TAKE_SCRIPT = new DefaultRedisScript<>();
+        STOCK_TAKE_SCRIPT.setLocation(new ClassPathResource("stock_take.lua"));
+        STOCK_TAKE_SCRIPT.setResultType(Long.class);
+    }
+
+    //订单状态：已取消
+    private static final int ORDER_STATUS_CANCELLED = 4;
+    //每次从消息队列里最多取多少条
+    private static final int STREAM_READ_COUNT = 100;
+    //空闲时多久检查一次pending-list
+    private static final long PENDING_SCAN_INTERVAL_MS = 60_000L;
+
+    //处理订单的线程，只有一个，从消息队列里取订单交给批量写入器
+    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private volatile boolean running = true;
+
+    @PostConstruct
+    private void init() {
+        if (consumerName == null || consumerName.isEmpty()) {
+            consumerName = NetUtil.getLocalHostName();
+        }
+        //本地模式不用消息队列
+        if (localSeckillPipeline != null) {
+            return;
+        }
+        //创建消费者组（队列不存在时一起创建）
+        createStreamGroup();
+        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        SECKILL_ORDER_EXECUTOR.shutdown();
+    }
+
+    private void createStreamGroup() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    SECKILL_STREAM_KEY.getBytes(StandardCharsets.UTF_8), SECKILL_STREAM_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            //BUSYGROUP 说明组已经存在，不用处理
+            log.debug("消费者组已存在：{}", e.getMessage());
+        }
+    }
+
+    /**
+     * 消费消息队列里的订单，交给批量写入器，写入成功后再统一ACK
+     */
+    private class VoucherOrderHandler implements Runnable {
+        //已经写入数据库、等待ACK的消息id
+        private final Queue<RecordId> acks = new ConcurrentLinkedQueue<>();
+        //被数据库拒绝的消息id，ACK前先从消息队列删掉，对账回放时不会当成丢失的订单再写一次
+        private final Queue<RecordId> rejected = new ConcurrentLinkedQueue<>();
+        private long lastPendingScan;
+
+        @Override
+        public void run() {
+            //1、启动时先把自己pending-list里没确认的消息处理掉（上次宕机时可能有）
+            handlePendingList();
+            while (running) {
+                try {
+                    ackPersisted();
+                    //2、获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 100 BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(SECKILL_STREAM_GROUP, consumerName),
+                            StreamReadOptions.empty().count(STREAM_READ_COUNT).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(SECKILL_STREAM_KEY, ReadOffset.lastConsumed())
+                    );
+                    //3、判断消息是否获取成功
+                    if (list == null || list.isEmpty()) {
+                        //没有消息，空闲时顺便看看有没有写入失败、还留在pending-list里的消息
+                        if (System.currentTimeMillis() - lastPendingScan > PENDING_SCAN_INTERVAL_MS) {
+                            handlePendingList();
+                        }
+                        continue;
+                    }
+                    //4、解析消息，交给批量写入器（队列满时这里会阻塞，消息留在Redis里，形成背压）
+                    for (MapRecord<String, Object, Object> record : list) {
+                        handleRecord(record);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("处理订单异常", e);
+                    //出现异常的消息还在pending-list里，去那里重试
+                    handlePendingList();
+                }
+            }
+        }
+
+        private void handlePendingList() {
+            lastPendingScan = System.currentTimeMillis();
+            //从头把pending-list过一遍
+            String offset = "0";
+            while (running) {
+                try {
+                    //1、获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 100 STREAMS stream.orders 0
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(SECKILL_STREAM_GROUP, consumerName),
+                            StreamReadOptions.empty().count(STREAM_READ_COUNT),
+                            StreamOffset.create(SECKILL_STREAM_KEY, ReadOffset.from(offset))
+                    );
+                    //2、判断消息是否获取成功
+                    if (list == null || list.isEmpty()) {
+                        //pending-list里没有消息，结束
+                        break;
+                    }
+                    Map<String, Long> deliveries = deliveryCounts(list);
+                    for (MapRecord<String, Object, Object> record : list) {
+                        //2.1、重试了太多次（解析不了、一直写不进去），移到死信队列
+                        if (deliveries.getOrDefault(record.getId().getValue(), 0L) > maxDeliveries) {
+                            deadLetter(record);
+                        } else {
+                            handleRecord(record);
+                        }
+                        offset = record.getId().getValue();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("处理pending-list订单异常", e);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * 查这批pending消息各自投递了多少次（每次XREADGROUP读到都会加一）
+         */
+        private Map<String, Long> deliveryCounts(List<MapRecord<String, Object, Object>> list) {
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(SECKILL_STREAM_KEY,
+                    Consumer.from(SECKILL_STREAM_GROUP, consumerName),
+                    Range.closed(list.get(0).getId().getValue(), list.get(list.size() - 1).getId().getValue()),
+                    list.size());
+            Map<String, Long> counts = new HashMap<>();
+            for (PendingMessage message : pending) {
+                counts.put(message.getIdAsString(), message.getTotalDeliveryCount());
+            }
+            return counts;
+        }
+
+        /**
+         * 原样写到死信队列（带上原来的消息id），从消息队列删掉再ACK，等人工处理；Redis里的库存不动，处理时再决定还不还
+         * 不删的话对账回放已确认的消息时会把它当成丢失的订单重新写库
+         */
+        private void deadLetter(MapRecord<String, Object, Object> record) {
+            Map<Object, Object> value = new HashMap<>(record.getValue());
+            value.put("sourceId", record.getId().getValue());
+            stringRedisTemplate.opsForStream().add(SECKILL_STREAM_DLQ_KEY, value);
+            stringRedisTemplate.opsForStream().delete(SECKILL_STREAM_KEY, record.getId());
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP, record.getId());
+            log.error("订单消息重试次数超过{}次，移到死信队列，id={}，消息：{}", maxDeliveries, record.getId(), record.getValue());
+        }
+
+        private void handleRecord(MapRecord<String, Object, Object> record) throws InterruptedException {
+            Map<Object, Object> value = record.getValue();
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+            RecordId recordId = record.getId();
+            //写入数据库后再ACK
+            voucherOrderBatchWriter.submit(voucherOrder, () -> acks.add(recordId), () -> rejected.add(recordId), null);
+        }
+
+        private void ackPersisted() {
+            if (acks.isEmpty()) {
+                return;
+            }
+            List<RecordId> ids = new ArrayList<>();
+            RecordId id;
+            while ((id = acks.poll()) != null) {
+                ids.add(id);
+            }
+            //被拒绝的先删掉再ACK（拒绝回调在写入回调之前，这里取到的都已经有结果了）
+            List<RecordId> deletes = new ArrayList<>();
+            while ((id = rejected.poll()) != null) {
+                deletes.add(id);
+            }
+            if (!deletes.isEmpty()) {
+                //XDEL stream.orders id1 id2 ...
+                stringRedisTemplate.opsForStream().delete(SECKILL_STREAM_KEY, deletes.toArray(new RecordId[0]));
+            }
+            //ACK确认 XACK stream.orders g1 id1 id2 ...
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP, ids.toArray(new RecordId[0]));
+        }
+    }
+
+    /**
+     * 秒杀下单，只操作Redis，订单由后台线程异步写入数据库
+     * @param voucherId 传入优惠券id
+     * @return 返回订单id
+     */
     @Override
     public Result seckillVoucher(Long voucherId) {
-        return null;
+        //0、不在秒杀时间内，或者本节点已经知道卖完了，直接返回，不用访问Redis
+        String error = seckillWindowGate.check(voucherId);
+        if (error != null) {
+            return Result.fail(error);
+        }
+        if (seckillSoldOutMarker.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        Long userId = UserHolder.getUser().getId();
+        long orderId = redisIdWorker.nextId("order");
+        //执行脚本前的库存变更版本号，脚本执行期间有库存还回来就不标记售罄
+        long stockVersion = seckillSoldOutMarker.stockVersion();
+        //1、执行lua脚本（本地模式交给本地流水线）
+        Long result;
+        if (localSeckillPipeline != null) {
+            result = (long) localSeckillPipeline.submit(voucherId, userId, orderId);
+        } else {
+            result = seckillWithRedis(voucherId, userId, orderId);
+        }
+        //2、判断结果是否为0
+        int r = result == null ? 1 : result.intValue();
+        if (r == LocalSeckillPipeline.BUSY) {
+            return Result.fail("系统繁忙，请稍后再试");
+        }
+        if (r != 0) {
+            //2.1、不为0，代表没有购买资格，库存不足时记下售罄标记
+            if (r == 1) {
+                seckillSoldOutMarker.markSoldOut(voucherId, stockVersion);
+            }
+            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+        }
+        //3、返回订单id
+        return Result.ok(orderId);
+    }
+
+    /**
+     * Redis模式下单：不分片时一个lua脚本完成，分片时走分片脚本
+     * @return 0成功，1库存不足，2重复下单
+     */
+    private Long seckillWithRedis(Long voucherId, Long userId, long orderId) {
+        int shards = seckillStockShards.shardCount(voucherId);
+        if (shards <= 1) {
+            return stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId, SECKILL_STREAM_KEY,
+                            SeckillOrderStatus.statusKey(userId, orderId)),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                    String.valueOf(TimeUnit.MINUTES.toSeconds(SECKILL_STATUS_TTL))
+            );
+        }
+        return seckillWithShards(voucherId, userId, orderId, shards);
+    }
+
+    /**
+     * 分片库存下单：先在用户所属分片里判断一人一单并记录下单用户（没库存也先占住），有库存就扣，
+     * 这个分片没库存了再去其他分片拿，都拿不到删掉占住的下单记录，最后发消息到队列。
+     * 库存分片和消息队列不在同一个slot，不能放进一个脚本：下单记录先占住，再扣库存，最后发消息，
+     * 中途宕机只会少卖（库存扣了或者用户被占住，但没有订单），不会超卖，也不会一人多单；
+     * 少卖的部分在对账的偏差（只占住没扣库存）和积压（扣了库存没有订单）指标里能看到
+     * @return 0成功，1库存不足，2重复下单
+     */
+    private Long seckillWithShards(Long voucherId, Long userId, long orderId, int shards) {
+        int home = seckillStockShards.homeShard(userId, shards);
+        String homeOrderKey = seckillStockShards.orderKey(voucherId, shards, home);
+        //1、所属分片
+        Long result = stringRedisTemplate.execute(
+                SECKILL_SHARD_SCRIPT,
+                Arrays.asList(seckillStockShards.stockKey(voucherId, shards, home), homeOrderKey),
+                userId.toString()
+        );
+        if (result != null && result == 3L) {
+            //2、所属分片没库存了（下单记录已经占住），从随机位置开始依次去其他分片拿
+            result = 1L;
+            int start = ThreadLocalRandom.current().nextInt(shards - 1);
+            for (int i = 0; i < shards - 1; i++) {
+                int shard = (home + 1 + (start + i) % (shards - 1)) % shards;
+                String stockKey = seckillStockShards.stockKey(voucherId, shards, shard);
+                Long taken = stringRedisTemplate.execute(STOCK_TAKE_SCRIPT, Collections.singletonList(stockKey));
+                if (taken != null && taken == 1L) {
+                    result = 0L;
+                    break;
+                }
+            }
+            //2.1、都没有库存，删掉占住的下单记录
+            if (result == 1L) {
+                stringRedisTemplate.opsForSet().remove(homeOrderKey, userId.toString());
+            }
+        }
+        if (result != null && result == 0L) {
+            //3、先记录排队中，再发送消息到队列；反过来的话消费者可能先写了PERSISTED，又被QUEUED覆盖
+            seckillOrderStatus.markQueued(userId, orderId);
+            Map<String, String> message = new HashMap<>();
+            message.put("userId", userId.toString());
+            message.put("voucherId", voucherId.toString());
+            message.put("id", String.valueOf(orderId));
+            stringRedisTemplate.opsForStream().add(SECKILL_STREAM_KEY, message);
+        }
+        return result;
+    }
+
+    /**
+     * 单条订单写入数据库，批量写入失败时逐条兜底用
+     * 消息可能被重复投递（pending-list重试），所以这里按订单id和一人一单做幂等
+     * @param voucherOrder 传入订单
+     * @return 订单已经在数据库里返回true，被拒绝（重复下单、库存不足）返回false
+     */
+    @Override
+    @Transactional
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
+        //1、订单已经写入过，直接返回
+        if (getById(voucherOrder.getId()) != null) {
+            return true;
+        }
+        //2、一人一单（Redis里已经判断过，这里兜底），超时取消的订单不算
+        Integer count = query().eq("user_id", voucherOrder.getUserId())
+                .eq("voucher_id", voucherOrder.getVoucherId())
+                .ne("status", ORDER_STATUS_CANCELLED).count();
+        if (count > 0) {
+            log.error("用户已经购买过一次！userId={}", voucherOrder.getUserId());
+            return false;
+        }
+        //3、扣减库存 update tb_seckill_voucher set stock = stock - 1 where voucher_id = ? and stock > 0
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - 1")
+                .eq("voucher_id", voucherOrder.getVoucherId())
+                .gt("stock", 0)
+                .update();
+        if (!success) {
+            log.error("库存不足！voucherId={}", voucherOrder.getVoucherId());
+            return false;
+        }
+        //4、创建订单
+        return save(voucherOrder);
+    }
+
+    /**
+     * 取消超时未支付的订单，并把库存还给数据库，在一个事务里完成
+     * 先锁住还是未支付状态的订单，已经支付的不会被取消
+     * @param orderIds 传入到期的订单id
+     * @return 这次真正取消的订单
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(Collection<Long> orderIds) {
+        //1、锁住未支付的订单 select ... where status = 1 and id in (...) for update
+        List<VoucherOrder> orders = getBaseMapper().selectUnpaidForUpdate(orderIds);
+        if (orders.isEmpty()) {
+            return orders;
+        }
+        //2、逐条改成已取消 update ... where id = ? and status = 1，只有影响行数为1的才算这次取消的
+        List<VoucherOrder> cancelled = new ArrayList<>(orders.size());
+        Map<Long, Integer> stockDelta = new HashMap<>();
+        for (VoucherOrder order : orders) {
+            if (getBaseMapper().cancelById(order.getId()) != 1) {
+                continue;
+            }
+            cancelled.add(order);
+            stockDelta.merge(order.getVoucherId(), 1, Integer::sum);
+        }
+        //3、按优惠券汇总，一条UPDATE还库存
+        stockDelta.forEach(seckillVoucherMapper::increaseStock);
+        return cancelled;
+    }
+
+    /**
+     * 查询秒杀订单状态，客户端下单后轮询用
+     * @param orderId 传入订单id
+     * @return QUEUED / PERSISTED / FAILED / NOT_FOUND
+     */
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        //只能查自己的订单，Redis和数据库都带上用户id
+        Long userId = UserHolder.getUser().getId();
+        String status = seckillOrderStatus.query(userId, orderId,
+                id -> query().eq("id", id).eq("user_id", userId).count() > 0);
+        return Result.ok(status);
     }
 }
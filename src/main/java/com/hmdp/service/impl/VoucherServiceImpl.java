@@ -7,8 +7,15 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.LocalSeckillPipeline;
+import com.hmdp.utils.SeckillSoldOutMarker;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillWindowGate;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
@@ -24,6 +31,15 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillWindowGate seckillWindowGate;
+    @Resource
+    private SeckillSoldOutMarker seckillSoldOutMarker;
+    //本地模式（hmdp.seckill.mode=local）才有
+    @Autowired(required = false)
+    private LocalSeckillPipeline localSeckillPipeline;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -45,5 +61,39 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // Redis在事务提交以后再写，回滚时不会留下数据库里不存在的券的库存
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                // 保存秒杀库存到Redis中，下单时直接在Redis里判断库存（热点券可以拆成多个分片）
+                seckillStockShards.initStock(voucher.getId(), voucher.getStock(), voucher.getShards());
+                // 登记秒杀时间窗口，下单前在内存里判断
+                seckillWindowGate.open(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime());
+                // 通知所有节点清掉本地的售罄标记
+                seckillSoldOutMarker.publishStockChanged(voucher.getId());
+            }
+        });
+    }
+
+    @Override
+    public Result querySeckillStock(Long voucherId) {
+        // 本地模式：库存在本节点内存里，还没加载过的数据库里是准的
+        if (localSeckillPipeline != null) {
+            Integer stock = localSeckillPipeline.remainingStock(voucherId);
+            if (stock == null) {
+                SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+                if (voucher == null) {
+                    return Result.fail("秒杀券不存在！");
+                }
+                stock = voucher.getStock();
+            }
+            return Result.ok(stock);
+        }
+        // 所有分片的库存加起来
+        Integer stock = seckillStockShards.totalStock(voucherId);
+        if (stock == null) {
+            return Result.fail("秒杀券不存在！");
+        }
+        return Result.ok(stock);
     }
 }
@@ -0,0 +1,359 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑的二进制编解码
+ * 格式：
+ * 普通值：    [0xB0][结构哈希 4字节][字段]
+ * 逻辑过期值：[0xB2][过期时间 8字节][重建耗时 4字节][结构哈希 4字节][字段]
+ * 旧的逻辑过期值：[0xB1][过期时间 8字节][结构哈希 4字节][字段]，没有重建耗时，读出来当作0
+ * 过期时间和重建耗时在固定位置，不用解码字段就能判断是否过期、是否提前刷新。
+ * 字段按名字排序依次写入，开头是一个null位图；整数用zigzag变长编码，字符串是长度 + UTF-8。
+ * 结构哈希由字段名和字段类型算出来，类的字段变了以后旧数据解码失败，当作缓存未命中。
+ * 迁移：传入json编解码器时，不是二进制格式的数据（以前写的json）交给它解码
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte MAGIC_VALUE = (byte) 0xB0;
+    private static final byte MAGIC_LOGICAL = (byte) 0xB2;
+    //逻辑过期值的头部：魔数 + 过期时间 + 重建耗时
+    private static final int LOGICAL_HEADER = 13;
+    //加重建耗时之前写的逻辑过期值，头部只有魔数 + 过期时间，升级期间还在Redis里
+    private static final byte MAGIC_LOGICAL_V1 = (byte) 0xB1;
+    private static final int LOGICAL_HEADER_V1 = 9;
+
+    private static final int KIND_LONG = 1;
+    private static final int KIND_INT = 2;
+    private static final int KIND_DOUBLE = 3;
+    private static final int KIND_FLOAT = 4;
+    private static final int KIND_BOOLEAN = 5;
+    private static final int KIND_STRING = 6;
+    private static final int KIND_LOCAL_DATE_TIME = 7;
+    private static final int KIND_LOCAL_DATE = 8;
+    private static final int KIND_BIG_DECIMAL = 9;
+    //其他类型的字段存json字符串
+    private static final int KIND_JSON = 10;
+
+    /**
+     * 一个类的结构：排好序的字段和每个字段的编码方式
+     */
+    private static class Schema {
+        private final Field[] fields;
+        private final int[] kinds;
+        private final int hash;
+
+        private Schema(Class<?> type) {
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    list.add(field);
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            fields = list.toArray(new Field[0]);
+            kinds = new int[fields.length];
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < fields.length; i++) {
+                kinds[i] = kindOf(fields[i].getType());
+                sb.append(fields[i].getName()).append(':').append(fields[i].getType().getName()).append(';');
+            }
+            hash = sb.toString().hashCode();
+        }
+    }
+
+    private final CacheCodec fallback;
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    /**
+     * @param fallback 传入读旧格式用的编解码器，不需要兼容时传null
+     */
+    public BinaryCacheCodec(CacheCodec fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        out.write(MAGIC_VALUE);
+        writeObject(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public <R> R decode(byte[] raw, Class<R> type) {
+        if (raw[0] != MAGIC_VALUE) {
+            return decodeFallback(raw, type);
+        }
+        return readObject(ByteBuffer.wrap(raw, 1, raw.length - 1), type);
+    }
+
+    @Override
+    public byte[] encodeLogical(Object value, long expireMillis, long deltaMillis) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        out.write(MAGIC_LOGICAL);
+        writeFixedInt(out, (int) (expireMillis >>> 32));
+        writeFixedInt(out, (int) expireMillis);
+        writeFixedInt(out, (int) Math.min(deltaMillis, Integer.MAX_VALUE));
+        writeObject(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public LogicalEntry decodeLogical(byte[] raw) {
+        int headerLength;
+        if (raw[0] == MAGIC_LOGICAL) {
+            headerLength = LOGICAL_HEADER;
+        } else if (raw[0] == MAGIC_LOGICAL_V1) {
+            headerLength = LOGICAL_HEADER_V1;
+        } else {
+            if (fallback == null) {
+                throw new IllegalArgumentException("不是二进制格式的缓存值");
+            }
+            return fallback.decodeLogical(raw);
+        }
+        //过期时间和重建耗时在固定位置，直接读
+        ByteBuffer header = ByteBuffer.wrap(raw, 1, headerLength - 1);
+        long expireMillis = header.getLong();
+        long deltaMillis = headerLength == LOGICAL_HEADER ? header.getInt() : 0;
+        return new LogicalEntry() {
+            @Override
+            public long getExpireMillis() {
+                return expireMillis;
+            }
+
+            @Override
+            public long getDeltaMillis() {
+                return deltaMillis;
+            }
+
+            @Override
+            public <R> R getValue(Class<R> type) {
+                return readObject(ByteBuffer.wrap(raw, headerLength, raw.length - headerLength), type);
+            }
+        };
+    }
+
+    private <R> R decodeFallback(byte[] raw, Class<R> type) {
+        if (fallback == null) {
+            throw new IllegalArgumentException("不是二进制格式的缓存值");
+        }
+        return fallback.decode(raw, type);
+    }
+
+    private Schema schema(Class<?> type) {
+        return schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    private void writeObject(ByteArrayOutputStream out, Object value) {
+        Schema schema = schema(value.getClass());
+        writeFixedInt(out, schema.hash);
+        try {
+            //1、null位图
+            Object[] values = new Object[schema.fields.length];
+            byte[] nulls = new byte[(values.length + 7) / 8];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = schema.fields[i].get(value);
+                if (values[i] == null) {
+                    nulls[i >>> 3] |= (byte) (1 << (i & 7));
+                }
+            }
+            out.write(nulls, 0, nulls.length);
+            //2、不为null的字段依次写入
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    writeValue(out, schema.kinds[i], values[i]);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private <R> R readObject(ByteBuffer in, Class<R> type) {
+        Schema schema = schema(type);
+        if (in.getInt() != schema.hash) {
+            throw new IllegalStateException("缓存值的结构和" + type.getName() + "不一致");
+        }
+        try {
+            R value = type.getDeclaredConstructor().newInstance();
+            byte[] nulls = new byte[(schema.fields.length + 7) / 8];
+            in.get(nulls);
+            for (int i = 0; i < schema.fields.length; i++) {
+                if ((nulls[i >>> 3] & (1 << (i & 7))) == 0) {
+                    schema.fields[i].set(value, readValue(in, schema.kinds[i], schema.fields[i].getType()));
+                }
+            }
+            return value;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int kindOf(Class<?> type) {
+        if (type == Long.class || type == long.class) {
+            return KIND_LONG;
+        }
+        if (type == Integer.class || type == int.class || type == Short.class || type == short.class
+                || type == Byte.class || type == byte.class) {
+            return KIND_INT;
+        }
+        if (type == Double.class || type == double.class) {
+            return KIND_DOUBLE;
+        }
+        if (type == Float.class || type == float.class) {
+            return KIND_FLOAT;
+        }
+        if (type == Boolean.class || type == boolean.class) {
+            return KIND_BOOLEAN;
+        }
+        if (type == String.class) {
+            return KIND_STRING;
+        }
+        if (type == LocalDateTime.class) {
+            return KIND_LOCAL_DATE_TIME;
+        }
+        if (type == LocalDate.class) {
+            return KIND_LOCAL_DATE;
+        }
+        if (type == BigDecimal.class) {
+            return KIND_BIG_DECIMAL;
+        }
+        return KIND_JSON;
+    }
+
+    private static void writeValue(ByteArrayOutputStream out, int kind, Object value) {
+        switch (kind) {
+            case KIND_LONG:
+                writeVarLong(out, ((Number) value).longValue());
+                break;
+            case KIND_INT:
+                writeVarLong(out, ((Number) value).intValue());
+                break;
+            case KIND_DOUBLE:
+                long bits = Double.doubleToLongBits((Double) value);
+                writeFixedInt(out, (int) (bits >>> 32));
+                writeFixedInt(out, (int) bits);
+                break;
+            case KIND_FLOAT:
+                writeFixedInt(out, Float.floatToIntBits((Float) value));
+                break;
+            case KIND_BOOLEAN:
+                out.write((Boolean) value ? 1 : 0);
+                break;
+            case KIND_STRING:
+                writeString(out, (String) value);
+                break;
+            case KIND_LOCAL_DATE_TIME:
+                LocalDateTime time = (LocalDateTime) value;
+                writeVarLong(out, time.toEpochSecond(ZoneOffset.UTC));
+                writeVarLong(out, time.getNano());
+                break;
+            case KIND_LOCAL_DATE:
+                writeVarLong(out, ((LocalDate) value).toEpochDay());
+                break;
+            case KIND_BIG_DECIMAL:
+                writeString(out, ((BigDecimal) value).toString());
+                break;
+            default:
+                writeString(out, JSONUtil.toJsonStr(value));
+        }
+    }
+
+    private static Object readValue(ByteBuffer in, int kind, Class<?> type) {
+        switch (kind) {
+            case KIND_LONG:
+                return readVarLong(in);
+            case KIND_INT:
+                int i = (int) readVarLong(in);
+                if (type == Short.class || type == short.class) {
+                    return (short) i;
+                }
+                if (type == Byte.class || type == byte.class) {
+                    return (byte) i;
+                }
+                return i;
+            case KIND_DOUBLE:
+                return in.getDouble();
+            case KIND_FLOAT:
+                return in.getFloat();
+            case KIND_BOOLEAN:
+                return in.get() != 0;
+            case KIND_STRING:
+                return readString(in);
+            case KIND_LOCAL_DATE_TIME:
+                long seconds = readVarLong(in);
+                return LocalDateTime.ofEpochSecond(seconds, (int) readVarLong(in), ZoneOffset.UTC);
+            case KIND_LOCAL_DATE:
+                return LocalDate.ofEpochDay(readVarLong(in));
+            case KIND_BIG_DECIMAL:
+                return new BigDecimal(readString(in));
+            default:
+                return JSONUtil.toBean(readString(in), type);
+        }
+    }
+
+    private static void writeFixedInt(ByteArrayOutputStream out, int v) {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+
+    /**
+     * zigzag + 变长编码，绝对值小的数占的字节少
+     */
+    private static void writeVarLong(ByteArrayOutputStream out, long v) {
+        long zigzag = (v << 1) ^ (v >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.write((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.write((int) zigzag);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long zigzag = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = (int) readVarLong(in);
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+}
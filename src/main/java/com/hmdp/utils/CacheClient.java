@@ -1,21 +1,59 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
+import cn.hutool.core.date.LocalDateTimeUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import cn.hutool.core.util.ReflectUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.Map;
+import java.util.Set;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * 封装redis 缓存重建工具类
+ * 可以在Redis前面加一层本地缓存（hmdp.cache.local.enabled=true），存反序列化好的对象，
+ * 热点数据不用访问Redis也不用解析json；删除缓存时通过Redis发布订阅通知所有节点清掉本地缓存。
+ * 缓存值按字节读写，编解码由CacheCodec负责（hmdp.cache.codec=json|binary），空值（防止缓存穿透）是空字节数组。
+ * 每个缓存key有一个版本号（cache:version:{key}），删除缓存时加一；查数据库前先读版本号，
+ * 写回时用lua脚本比较，版本号变了说明期间数据被修改过，查到的可能是旧数据，不写回。
+ * 版本号key用hash tag和缓存key分到同一个slot，Redis集群下脚本同时访问两个key不会报CROSSSLOT
+ * 热点key可以在Redis集群里存几个副本（key:r1..key:rK，分到不同的slot），读的时候随机读一个副本，分散单个分片的压力
  */
 @Slf4j
 @Component
@@ -25,6 +63,286 @@ public class CacheClient {
     public CacheClient(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    //自己注册了CacheCodec的bean就用它
+    @Resource
+    private ObjectProvider<CacheCodec> customCodec;
+    //逻辑过期用的重建线程池，所有缓存共用
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+    //命中率等指标，按key前缀区分
+    @Resource
+    private CacheMetrics cacheMetrics;
+    @Resource
+    private DbCircuitBreaker dbCircuitBreaker;
+
+    /**
+     * 缓存值的格式：json 或 binary
+     */
+    @Value("${hmdp.cache.codec:json}")
+    private String codecName;
+    /**
+     * 用binary时是否还能读以前写的json（迁移期间打开）
+     */
+    @Value("${hmdp.cache.codec-read-json:true}")
+    private boolean codecReadJson;
+    /**
+     * 逻辑过期的缓存是否提前刷新（XFetch）
+     */
+    @Value("${hmdp.cache.early-refresh.enabled:false}")
+    private boolean earlyRefreshEnabled;
+    /**
+     * 提前刷新的力度，越大越早刷新，1.0是论文里的默认值
+     */
+    @Value("${hmdp.cache.early-refresh.beta:1.0}")
+    private double earlyRefreshBeta;
+    /**
+     * stale-while-revalidate模式下，过了缓存时间以后还保留多久（秒），这段时间内返回旧数据并在后台刷新
+     */
+    @Value("${hmdp.cache.swr.stale-seconds:3600}")
+    private long staleSeconds;
+    /**
+     * 过期时间再随机加上 0 ~ 过期时间*这个比例，同一时间写入的key不会同时过期（缓存雪崩），0表示不加
+     * 默认1.0，和原来店铺缓存的 CACHE_SHOP_TTL + rand(30) 分钟一样
+     */
+    @Value("${hmdp.cache.ttl-jitter-ratio:1.0}")
+    private double ttlJitterRatio;
+
+    /**
+     * 是否开启本地缓存
+     */
+    @Value("${hmdp.cache.local.enabled:false}")
+    private boolean localEnabled;
+    /**
+     * 本地缓存最多多少个key
+     */
+    @Value("${hmdp.cache.local.maximum-size:10000}")
+    private long localMaximumSize;
+    /**
+     * 本地缓存多久过期（秒），通知丢了最多也只会旧这么久
+     */
+    @Value("${hmdp.cache.local.ttl-seconds:30}")
+    private long localTtlSeconds;
+    /**
+     * 是否开启热点key探测，热点key自动放进本地缓存（不需要开启hmdp.cache.local）
+     */
+    @Value("${hmdp.cache.hot-key.enabled:false}")
+    private boolean hotKeyEnabled;
+    /**
+     * 抽样比例，只统计这个比例的访问
+     */
+    @Value("${hmdp.cache.hot-key.sample-ratio:0.1}")
+    private double hotKeySampleRatio;
+    /**
+     * 一个窗口内访问多少次算热点
+     */
+    @Value("${hmdp.cache.hot-key.threshold:1000}")
+    private long hotKeyThreshold;
+    @Value("${hmdp.cache.hot-key.top-k:50}")
+    private int hotKeyTopK;
+    @Value("${hmdp.cache.hot-key.window-seconds:10}")
+    private long hotKeyWindowSeconds;
+    @Value("${hmdp.cache.hot-key.buckets:5}")
+    private int hotKeyBuckets;
+    /**
+     * 热点key在本地缓存里放多久（秒），短一点，删除通知丢了也旧不了多久
+     */
+    @Value("${hmdp.cache.hot-key.pin-ttl-seconds:3}")
+    private long hotKeyPinTtlSeconds;
+    /**
+     * 每个需要复制的key在Redis里存几个副本，0表示不复制
+     */
+    @Value("${hmdp.cache.replica.count:0}")
+    private int replicaCount;
+    /**
+     * 探测到的热点key是否自动读副本（需要开启hmdp.cache.hot-key）
+     */
+    @Value("${hmdp.cache.replica.hot-keys:true}")
+    private boolean replicaHotKeys;
+    /**
+     * 一直读副本的key，例如 cache:shop:1
+     */
+    @Value("${hmdp.cache.replica.keys:}")
+    private List<String> replicaKeys;
+
+    //本地缓存里的空值，对应Redis里的""
+    private static final Object NULL_VALUE = new Object();
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[] ZERO_VERSION = "0".getBytes(StandardCharsets.UTF_8);
+    private CacheCodec codec;
+
+    //查数据库后写回缓存的lua脚本：版本号没变才写
+    private static final DefaultRedisScript<Long> CACHE_SET_SCRIPT;
+    static {
+        CACHE_SET_SCRIPT = new DefaultRedisScript<>();
+        CACHE_SET_SCRIPT.setLocation(new ClassPathResource("cache_set.lua"));
+        CACHE_SET_SCRIPT.setResultType(Long.class);
+    }
+    //按字段写hash的lua脚本：版本号没变才写
+    private static final DefaultRedisScript<Long> CACHE_HSET_SCRIPT;
+    static {
+        CACHE_HSET_SCRIPT = new DefaultRedisScript<>();
+        CACHE_HSET_SCRIPT.setLocation(new ClassPathResource("cache_hset.lua"));
+        CACHE_HSET_SCRIPT.setResultType(Long.class);
+    }
+    //hash缓存里标记是否存在的字段：1存在，0数据库里也没有（防止缓存穿透）；key不存在时HMGET全是null
+    private static final String HASH_EXISTS_FIELD = "_";
+    private static final byte[] HASH_EXISTS = "1".getBytes(StandardCharsets.UTF_8);
+    private static final RedisSerializer<Long> LONG_SERIALIZER = new GenericToStringSerializer<>(Long.class);
+    //本地缓存，key -> 反序列化好的对象，没开启时为null；返回的对象是共享的，调用方不要修改
+    private Cache<String, Object> localCache;
+    //热点key探测和热点key的本地缓存，没开启时为null
+    private HotKeyDetector hotKeyDetector;
+    private Cache<String, Object> hotCache;
+    //key前缀 -> 布隆过滤器，判断为不存在的id直接返回null
+    private final Map<String, Predicate<Object>> bloomFilters = new ConcurrentHashMap<>();
+    //手动指定要读副本的key
+    private final Set<String> replicatedKeys = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    private void init() {
+        codec = customCodec.getIfAvailable(() -> "binary".equals(codecName)
+                ? new BinaryCacheCodec(codecReadJson ? new JsonCacheCodec() : null)
+                : new JsonCacheCodec());
+        if (localEnabled) {
+            localCache = Caffeine.newBuilder()
+                    .maximumSize(localMaximumSize)
+                    .expireAfterWrite(localTtlSeconds, TimeUnit.SECONDS)
+                    .build();
+        }
+        if (replicaKeys != null) {
+            replicaKeys.stream().filter(k -> !k.isEmpty()).forEach(replicatedKeys::add);
+        }
+        if (hotKeyEnabled) {
+            hotKeyDetector = new HotKeyDetector(hotKeySampleRatio, hotKeyThreshold, hotKeyTopK,
+                    TimeUnit.SECONDS.toMillis(hotKeyWindowSeconds), hotKeyBuckets);
+            hotCache = Caffeine.newBuilder()
+                    .maximumSize(hotKeyTopK)
+                    .expireAfterWrite(hotKeyPinTtlSeconds, TimeUnit.SECONDS)
+                    .build();
+        }
+        if (!hasLocalTier()) {
+            return;
+        }
+        //收到删除通知，清掉本地缓存
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                        invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    private boolean hasLocalTier() {
+        return localCache != null || hotCache != null;
+    }
+
+    private void invalidateLocal(String key) {
+        if (localCache != null) {
+            localCache.invalidate(key);
+        }
+        if (hotCache != null) {
+            hotCache.invalidate(key);
+        }
+    }
+
+    /**
+     * 当前访问量最高的key（热点key探测没开启时为空），按访问量从高到低
+     */
+    public List<Map.Entry<String, Long>> hotKeys() {
+        return hotKeyDetector == null ? Collections.emptyList() : hotKeyDetector.topKeys();
+    }
+
+    /**
+     * key是否被当作热点放在本地缓存里
+     */
+    public boolean isPinned(String key) {
+        return hotCache != null && hotCache.getIfPresent(key) != null;
+    }
+
+    /**
+     * 指定key读副本，只影响当前节点（其他节点要在配置里加上hmdp.cache.replica.keys）
+     * @param key 传入缓存key
+     */
+    public void replicate(String key) {
+        replicatedKeys.add(key);
+    }
+
+    /**
+     * 不再读这个key的副本，已经写了的副本等过期或下次删除缓存时删掉
+     * @param key 传入缓存key
+     */
+    public void unreplicate(String key) {
+        replicatedKeys.remove(key);
+    }
+
+    /**
+     * key是否读副本：手动指定的，或者探测到的热点key
+     */
+    public boolean isReplicated(String key) {
+        if (replicaCount <= 0) {
+            return false;
+        }
+        return replicatedKeys.contains(key)
+                || (replicaHotKeys && hotKeyDetector != null && hotKeyDetector.isHot(key));
+    }
+
+    /**
+     * 注册布隆过滤器，查这个前缀的缓存前先判断id是否可能存在
+     * @param keyHead 传入key的前缀
+     * @param mightContain 传入判断，返回false表示一定不存在
+     */
+    public void registerBloomFilter(String keyHead, Predicate<Object> mightContain){
+        bloomFilters.put(keyHead, mightContain);
+    }
+
+    private boolean mightContain(String keyHead, Object id){
+        Predicate<Object> filter = bloomFilters.get(keyHead);
+        return filter == null || filter.test(id);
+    }
+
+    /**
+     * 删除缓存：版本号加一（正在查数据库的旧数据写不回来），删除Redis里的key，并通知所有节点清掉本地缓存
+     * 要在数据库修改之后调用
+     * @param key 传入要删除的key
+     */
+    public void delete(String key){
+        delete(Collections.singletonList(key));
+    }
+
+    /**
+     * 批量删除缓存，所有命令放在一个管道里发出去
+     * @param keys 传入要删除的key
+     */
+    public void delete(Collection<String> keys){
+        if (keys.isEmpty()) {
+            return;
+        }
+        long versionTtl = TimeUnit.HOURS.toSeconds(CACHE_VERSION_TTL);
+        byte[] channel = rawKey(CACHE_INVALIDATE_CHANNEL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                byte[] versionKey = rawKey(versionKey(key));
+                connection.incr(versionKey);
+                //版本号只需要比最慢的一次查数据库活得久
+                connection.expire(versionKey, versionTtl);
+                connection.del(rawKey(key));
+                connection.del(rawKey(softExpireKey(key)));
+                //哪些key有副本每个节点不一样，副本全部删掉
+                for (int i = 1; i <= replicaCount; i++) {
+                    connection.del(rawKey(key + CACHE_REPLICA_SUFFIX + i));
+                }
+                if (hasLocalTier()) {
+                    connection.publish(channel, rawKey(key));
+                }
+            }
+            return null;
+        });
+        if (localCache != null) {
+            localCache.invalidateAll(keys);
+        }
+        if (hotCache != null) {
+            hotCache.invalidateAll(keys);
+        }
+    }
     //写入缓存的set方法
     /**
      * 这里是正常的存入缓存
@@ -35,7 +353,7 @@ public class CacheClient {
      */
     public void set(String key, Object value, Long time, TimeUnit unit){
         //Object value为泛型，以后其他的类也能调用
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        setRaw(key, codec.encode(value), jitter(unit.toSeconds(time)));
     }
     /**
      * 这里是逻辑过期
@@ -46,18 +364,14 @@ public class CacheClient {
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
         //Object value为泛型，以后其他的类也能调用
-        //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-
-        //写入redis
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        //设置逻辑过期，写入redis（不设置TTL），不知道重建花的时间，不会提前刷新
+        long expireMillis = System.currentTimeMillis() + unit.toMillis(time);
+        setRaw(key, codec.encodeLogical(value, expireMillis, 0), 0);
     }
     //读取缓存的get方法
 
     /**
-     * 缓存穿透
+     * 缓存穿透，未命中时本节点同一个key只有一个请求查数据库，其他请求等它的结果
      * @param keyHead 传入存入redis的key的前缀
      * @param id 传入id
      * @param type 传入泛型的类型
@@ -69,40 +383,638 @@ public class CacheClient {
      * @param <ID> id可能多种类型
      */
     public <R,ID> R queryWithPassThrough(String keyHead, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit unit){
+        //0、布隆过滤器判断不存在，直接返回，不查Redis和数据库
+        if (!mightContain(keyHead, id)) {
+            return null;
+        }
         String key = keyHead + id;
-        //1、从redis查询店铺
-        String json = stringRedisTemplate.opsForValue().get(key);
+        CacheMetrics.PrefixMeters metrics = cacheMetrics.of(keyHead);
+        //0.1、先查本地缓存
+        Object local = getLocal(key);
+        if (local != null) {
+            return fromLocal(local, type, metrics);
+        }
+        //1、从redis查询店铺（热点key随机读一个副本）
+        byte[] raw = isReplicated(key) ? getReplica(key) : getRaw(key);
         //2、判断是否存在
-        if(StrUtil.isNotBlank(json)){
+        if(raw != null && raw.length > 0){
             //3、存在，直接返回
             //这里是不知道是什么类型，所以把传入的类型用作转化的类型
-            return JSONUtil.toBean(json, type);
+            R r = tryDecode(key, raw, type);
+            if (r != null) {
+                metrics.hit.increment();
+                putLocal(key, r);
+                return r;
+            }
+            //解码失败（类的结构变了），当作未命中
+            raw = null;
         }
         //判断是否是空
-        if (json != null) {
+        if (raw != null) {
             //TODO 命中，缓存通过后，需要判断缓存店铺信息是否为空（防止缓存穿透）
+            metrics.nullHit.increment();
+            putLocal(key, null);
             return null;
         }
-        //4、不存在，根据id查询数据库
+        //4、不存在，本节点同一个key的并发请求合并成一次（single-flight），只有一个请求去查数据库
         //函数式编程 传参时，传入一个函数，因为数据库的查询，需要对应实体类，这里是泛型
-        R r = dbFallback.apply(id);//Shop shop = getById(id);
-        //5、查询数据库还不存在
-        if(r==null){
-            //TODO 如果店铺信息在redis和MySQL中都不存在，则向redis中加入空缓存（防止缓存穿透）
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
-            return null;
-        }
-        //6、存在，写入redis
+        metrics.miss.increment();
+        //5、先读版本号，再查数据库：不存在写入空值（防止缓存穿透），存在写入redis（期间被修改过就不写，过期时间加随机值）
         /*
         stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop),
                 CACHE_SHOP_TTL+Math.abs(new Random().nextInt(30)), TimeUnit.MINUTES);
          */
-        this.set(key,r,time,unit);
-        //7、返回
+        return type.cast(singleFlight(key, () -> loadAndCache(key, id, dbFallback, time, unit, metrics)));
+    }
+
+    /**
+     * 本地缓存命中，记下指标并转成对应的类型
+     */
+    private <R> R fromLocal(Object local, Class<R> type, CacheMetrics.PrefixMeters metrics) {
+        if (local == NULL_VALUE) {
+            metrics.nullHit.increment();
+            return null;
+        }
+        metrics.localHit.increment();
+        return type.cast(local);
+    }
+
+    /**
+     * 批量查询，解决缓存穿透
+     * 一次MGET查Redis，未命中的id一次查数据库，再用管道一次写回（数据库里没有的写空值）
+     * @param keyHead 传入存入redis的key的前缀
+     * @param ids 传入id
+     * @param type 传入泛型的类型
+     * @param dbFallback 传入批量的数据库查询，返回 id -> 数据，没有的id不放进去
+     * @param time 传入缓存时间
+     * @param unit 传入缓存时间单位
+     * @return 返回 id -> 数据，按传入的顺序，不存在的id不在里面
+     * @param <R> 需要传入的类型
+     * @param <ID> id可能多种类型
+     */
+    public <R,ID> Map<ID,R> queryBatchWithPassThrough(String keyHead, Collection<ID> ids, Class<R> type,
+                                                      Function<Collection<ID>, Map<ID,R>> dbFallback, Long time, TimeUnit unit){
+        Map<ID,R> result = new LinkedHashMap<>();
+        CacheMetrics.PrefixMeters metrics = cacheMetrics.of(keyHead);
+        //1、布隆过滤器和本地缓存先过滤一遍
+        List<ID> remaining = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            if (!mightContain(keyHead, id) || result.containsKey(id)) {
+                continue;
+            }
+            Object local = getLocal(keyHead + id);
+            if (local == null) {
+                remaining.add(id);
+                //先占位，保证返回的顺序
+                result.put(id, null);
+            } else {
+                R r = fromLocal(local, type, metrics);
+                if (r != null) {
+                    result.put(id, r);
+                }
+            }
+        }
+        if (remaining.isEmpty()) {
+            return result;
+        }
+        //2、一次MGET，顺便读出版本号
+        List<String> keys = new ArrayList<>(remaining.size());
+        for (ID id : remaining) {
+            keys.add(keyHead + id);
+        }
+        int n = keys.size();
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> {
+            byte[][] rawKeys = new byte[n * 2][];
+            for (int i = 0; i < n; i++) {
+                rawKeys[i] = rawKey(keys.get(i));
+                rawKeys[n + i] = rawKey(versionKey(keys.get(i)));
+            }
+            return connection.mGet(rawKeys);
+        });
+        Map<ID,byte[]> versions = new LinkedHashMap<>();
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < remaining.size(); i++) {
+            ID id = remaining.get(i);
+            byte[] raw = values == null ? null : values.get(i);
+            R r = raw == null || raw.length == 0 ? null : tryDecode(keys.get(i), raw, type);
+            if (raw == null || (raw.length > 0 && r == null)) {
+                metrics.miss.increment();
+                misses.add(id);
+                byte[] version = values == null ? null : values.get(n + i);
+                versions.put(id, version == null ? ZERO_VERSION : version);
+            } else if (raw.length == 0) {
+                //空值，数据库里也没有
+                metrics.nullHit.increment();
+                result.remove(id);
+                putLocal(keys.get(i), null);
+            } else {
+                metrics.hit.increment();
+                result.put(id, r);
+                putLocal(keys.get(i), r);
+            }
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+        //3、未命中的一次查数据库
+        metrics.dbFallback.increment();
+        long begin = System.nanoTime();
+        Map<ID,R> loaded = dbFallback.apply(misses);
+        //4、管道写回（版本号变了的不写），数据库里没有的写空值（防止缓存穿透）
+        //   每个key的过期时间单独加随机值，同一批写入的不会同时过期
+        long ttl = unit.toSeconds(time);
+        long nullTtl = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+        byte[] script = CACHE_SET_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        List<Object> written = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : misses) {
+                R r = loaded.get(id);
+                String key = keyHead + id;
+                byte[] seconds = String.valueOf(jitter(r == null ? nullTtl : ttl)).getBytes(StandardCharsets.UTF_8);
+                connection.eval(script, ReturnType.INTEGER, 2, rawKey(key), rawKey(versionKey(key)),
+                        r == null ? EMPTY : codec.encode(r), seconds, versions.get(id));
+            }
+            return null;
+        });
+        metrics.rebuild.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        for (int i = 0; i < misses.size(); i++) {
+            ID id = misses.get(i);
+            R r = loaded.get(id);
+            if (r == null) {
+                result.remove(id);
+            } else {
+                result.put(id, r);
+            }
+            if (Long.valueOf(1L).equals(written.get(i))) {
+                putLocal(keyHead + id, r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 批量查询对象的部分字段，对象按字段存成hash，列表页只取需要的字段，不传输、不解析大字段
+     * 一个管道里对每个id发HMGET（只取要的字段）和读版本号，未命中的一次查数据库，把整个对象按字段写回
+     * 只查Redis，不走本地缓存（本地缓存存的是完整对象）
+     * @param keyHead 传入存入redis的key的前缀，不能和存完整对象的前缀相同
+     * @param ids 传入id
+     * @param type 传入泛型的类型，返回的对象只有要的字段有值
+     * @param fields 传入要的字段（属性名）
+     * @param dbFallback 传入批量的数据库查询，返回 id -> 完整的数据，没有的id不放进去
+     * @param time 传入缓存时间
+     * @param unit 传入缓存时间单位
+     * @return 返回 id -> 数据，按传入的顺序，不存在的id不在里面
+     * @param <R> 需要传入的类型
+     * @param <ID> id可能多种类型
+     */
+    public <R,ID> Map<ID,R> queryFieldsBatch(String keyHead, Collection<ID> ids, Class<R> type, Collection<String> fields,
+                                             Function<Collection<ID>, Map<ID,R>> dbFallback, Long time, TimeUnit unit){
+        Map<ID,R> result = new LinkedHashMap<>();
+        CacheMetrics.PrefixMeters metrics = cacheMetrics.of(keyHead);
+        //1、布隆过滤器先过滤一遍
+        List<ID> remaining = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            if (mightContain(keyHead, id) && !result.containsKey(id)) {
+                remaining.add(id);
+                //先占位，保证返回的顺序
+                result.put(id, null);
+            }
+        }
+        if (remaining.isEmpty()) {
+            return result;
+        }
+        //2、一个管道：每个id一次HMGET（第一个字段是存在标记），一次读版本号
+        List<String> fieldList = new ArrayList<>(fields);
+        byte[][] rawFields = new byte[fieldList.size() + 1][];
+        rawFields[0] = rawKey(HASH_EXISTS_FIELD);
+        for (int i = 0; i < fieldList.size(); i++) {
+            rawFields[i + 1] = rawKey(fieldList.get(i));
+        }
+        List<Object> replies = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : remaining) {
+                String key = keyHead + id;
+                connection.hMGet(rawKey(key), rawFields);
+                connection.get(rawKey(versionKey(key)));
+            }
+            return null;
+        }, RedisSerializer.byteArray());
+        Map<ID,byte[]> versions = new LinkedHashMap<>();
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < remaining.size(); i++) {
+            ID id = remaining.get(i);
+            @SuppressWarnings("unchecked")
+            List<byte[]> values = (List<byte[]>) replies.get(i * 2);
+            byte[] exists = values == null || values.isEmpty() ? null : values.get(0);
+            if (exists == null) {
+                metrics.miss.increment();
+                misses.add(id);
+                byte[] version = (byte[]) replies.get(i * 2 + 1);
+                versions.put(id, version == null ? ZERO_VERSION : version);
+            } else if (!Arrays.equals(exists, HASH_EXISTS)) {
+                //空值，数据库里也没有
+                metrics.nullHit.increment();
+                result.remove(id);
+            } else {
+                metrics.hit.increment();
+                Map<String, Object> projection = new HashMap<>();
+                for (int j = 0; j < fieldList.size(); j++) {
+                    byte[] value = values.get(j + 1);
+                    if (value != null) {
+                        projection.put(fieldList.get(j), new String(value, StandardCharsets.UTF_8));
+                    }
+                }
+                result.put(id, BeanUtil.fillBeanWithMap(projection, ReflectUtil.newInstance(type), false));
+            }
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+        //3、未命中的一次查数据库
+        metrics.dbFallback.increment();
+        long begin = System.nanoTime();
+        Map<ID,R> loaded = dbFallback.apply(misses);
+        //4、管道写回整个对象的所有字段（版本号变了的不写），数据库里没有的只写存在标记0
+        long ttl = unit.toSeconds(time);
+        long nullTtl = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+        byte[] script = CACHE_HSET_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : misses) {
+                R r = loaded.get(id);
+                String key = keyHead + id;
+                Map<String, Object> hash = r == null ? Collections.singletonMap(HASH_EXISTS_FIELD, "0") : toHash(r);
+                byte[][] keysAndArgs = new byte[4 + hash.size() * 2][];
+                keysAndArgs[0] = rawKey(key);
+                keysAndArgs[1] = rawKey(versionKey(key));
+                keysAndArgs[2] = String.valueOf(jitter(r == null ? nullTtl : ttl)).getBytes(StandardCharsets.UTF_8);
+                keysAndArgs[3] = versions.get(id);
+                int k = 4;
+                for (Map.Entry<String, Object> entry : hash.entrySet()) {
+                    keysAndArgs[k++] = rawKey(entry.getKey());
+                    keysAndArgs[k++] = rawKey((String) entry.getValue());
+                }
+                connection.eval(script, ReturnType.INTEGER, 2, keysAndArgs);
+            }
+            return null;
+        });
+        metrics.rebuild.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        //5、返回的也只放要的字段，和命中时一样
+        for (ID id : misses) {
+            R r = loaded.get(id);
+            if (r == null) {
+                result.remove(id);
+            } else {
+                Map<String, Object> hash = toHash(r);
+                hash.keySet().retainAll(fieldList);
+                result.put(id, BeanUtil.fillBeanWithMap(hash, ReflectUtil.newInstance(type), false));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 对象转成hash的字段，值都转成字符串，null的字段不存
+     */
+    private static Map<String, Object> toHash(Object value) {
+        Map<String, Object> hash = BeanUtil.beanToMap(value, new HashMap<>(),
+                CopyOptions.create()
+                        .setIgnoreNullValue(true)
+                        //时间只保留到秒，转回来时才能正确解析
+                        .setFieldValueEditor((fieldName, fieldValue) -> {
+                            if (fieldValue instanceof LocalDateTime) {
+                                return LocalDateTimeUtil.formatNormal((LocalDateTime) fieldValue);
+                            }
+                            return fieldValue == null ? null : fieldValue.toString();
+                        }));
+        hash.put(HASH_EXISTS_FIELD, "1");
+        return hash;
+    }
+
+    /**
+     * 查本地缓存，顺便记一次访问（热点key探测）
+     * @return 返回缓存的对象，空值返回NULL_VALUE，没有返回null
+     */
+    private Object getLocal(String key) {
+        if (hotKeyDetector != null) {
+            hotKeyDetector.record(key);
+            Object hot = hotCache.getIfPresent(key);
+            if (hot != null) {
+                return hot;
+            }
+        }
+        return localCache == null ? null : localCache.getIfPresent(key);
+    }
+
+    private void putLocal(String key, Object value) {
+        if (localCache != null) {
+            localCache.put(key, value == null ? NULL_VALUE : value);
+        }
+        //热点key放进热点缓存，热点期间不用再访问Redis
+        if (hotKeyDetector != null && value != null && hotKeyDetector.isHot(key)) {
+            hotCache.put(key, value);
+        }
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 缓存key对应的版本号key，和缓存key在Redis集群的同一个slot
+     * 缓存key本身带hash tag（{...}）时slot由tag决定，直接加前缀；否则把整个缓存key作为tag
+     * @param key 传入缓存key
+     */
+    private static String versionKey(String key) {
+        return sameSlotKey(CACHE_VERSION_KEY, key);
+    }
+
+    /**
+     * stale-while-revalidate的缓存时间到期的时间戳存在这个key，和缓存key在同一个slot
+     * @param key 传入缓存key
+     */
+    private static String softExpireKey(String key) {
+        return sameSlotKey(CACHE_SOFT_EXPIRE_KEY, key);
+    }
+
+    private static String sameSlotKey(String prefix, String key) {
+        int open = key.indexOf('{');
+        int close = open < 0 ? -1 : key.indexOf('}', open + 1);
+        if (close > open + 1) {
+            return prefix + key;
+        }
+        return prefix + "{" + key + "}";
+    }
+
+    /**
+     * 查数据库之前读版本号，没有是0
+     */
+    private String readVersion(String key) {
+        String version = stringRedisTemplate.opsForValue().get(versionKey(key));
+        return version == null ? "0" : version;
+    }
+
+    /**
+     * 过期时间加上随机的 0 ~ seconds*ttl-jitter-ratio 秒，不过期（小于等于0）的不加
+     */
+    private long jitter(long seconds) {
+        if (seconds <= 0 || ttlJitterRatio <= 0) {
+            return seconds;
+        }
+        return seconds + ThreadLocalRandom.current().nextLong((long) (seconds * ttlJitterRatio) + 1);
+    }
+
+    /**
+     * 版本号还是查数据库之前读到的才写入
+     * @param seconds 传入过期时间（秒），0表示不过期；会再加上随机值
+     * @param version 传入查数据库之前读到的版本号
+     * @return 返回是否写入
+     */
+    private boolean casSet(String key, byte[] value, long seconds, String version) {
+        return casSet(key, value, jitter(seconds), version, 0);
+    }
+
+    /**
+     * 版本号还是查数据库之前读到的才写入，可以同时写入缓存时间到期的时间戳
+     * @param seconds 传入过期时间（秒），0表示不过期；不再加随机值
+     * @param version 传入查数据库之前读到的版本号
+     * @param softExpireMillis 传入缓存时间到期的时间戳（毫秒），和值一起写、一起过期；0表示不写
+     * @return 返回是否写入
+     */
+    private boolean casSet(String key, byte[] value, long seconds, String version, long softExpireMillis) {
+        byte[] rawSeconds = String.valueOf(seconds).getBytes(StandardCharsets.UTF_8);
+        byte[] rawVersion = version.getBytes(StandardCharsets.UTF_8);
+        Long ok = softExpireMillis > 0
+                ? stringRedisTemplate.execute(CACHE_SET_SCRIPT, RedisSerializer.byteArray(), LONG_SERIALIZER,
+                        Arrays.asList(key, versionKey(key), softExpireKey(key)),
+                        value, rawSeconds, rawVersion, String.valueOf(softExpireMillis).getBytes(StandardCharsets.UTF_8))
+                : stringRedisTemplate.execute(CACHE_SET_SCRIPT, RedisSerializer.byteArray(), LONG_SERIALIZER,
+                        Arrays.asList(key, versionKey(key)),
+                        value, rawSeconds, rawVersion);
+        if (!Long.valueOf(1L).equals(ok)) {
+            log.debug("查询期间数据被修改，不写回缓存，key={}", key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 按字节读取，不存在返回null，空值返回空数组
+     */
+    private byte[] getRaw(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey(key)));
+    }
+
+    /**
+     * 随机读一个副本，副本不存在时读主key并复制到这个副本
+     * 副本和版本号不在同一个slot，不能用lua脚本比较：写完副本再读一次版本号，变了（期间删除了缓存）就删掉副本；
+     * 删除缓存在这之后发生的话会把副本一起删掉，所以副本不会比主key旧
+     * @return 返回值，和getRaw一样
+     */
+    private byte[] getReplica(String key) {
+        String replicaKey = key + CACHE_REPLICA_SUFFIX + (ThreadLocalRandom.current().nextInt(replicaCount) + 1);
+        byte[] raw = getRaw(replicaKey);
+        if (raw != null) {
+            return raw;
+        }
+        //1、副本没有，一个管道先读版本号，再读主key和剩余时间
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.get(rawKey(versionKey(key)));
+            connection.get(rawKey(key));
+            connection.pTtl(rawKey(key));
+            return null;
+        }, RedisSerializer.byteArray());
+        byte[] version = (byte[]) results.get(0);
+        raw = (byte[]) results.get(1);
+        Long pttl = (Long) results.get(2);
+        if (raw == null || pttl == null || (pttl <= 0 && pttl != -1)) {
+            return raw;
+        }
+        //2、写副本，过期时间和主key一样（不过期的主key是-1），同一个管道再读一次版本号
+        byte[] value = raw;
+        List<Object> after = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            if (pttl == -1) {
+                connection.set(rawKey(replicaKey), value);
+            } else {
+                connection.pSetEx(rawKey(replicaKey), pttl, value);
+            }
+            connection.get(rawKey(versionKey(key)));
+            return null;
+        }, RedisSerializer.byteArray());
+        //3、版本号变了，副本可能是旧数据，删掉
+        if (!Arrays.equals(version, (byte[]) after.get(after.size() - 1))) {
+            stringRedisTemplate.delete(replicaKey);
+        }
+        return raw;
+    }
+
+    /**
+     * 按字节写入
+     * @param seconds 传入过期时间（秒），小于等于0表示不过期
+     */
+    private void setRaw(String key, byte[] value, long seconds) {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            if (seconds > 0) {
+                connection.setEx(rawKey(key), seconds, value);
+            } else {
+                connection.set(rawKey(key), value);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 解码，失败（类的结构变了、格式不认识）返回null，调用方当作未命中
+     */
+    private <R> R tryDecode(String key, byte[] raw, Class<R> type) {
+        try {
+            return codec.decode(raw, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存值解码失败，当作未命中，key={}，原因：{}", key, e.getMessage());
+            return null;
+        }
+    }
+    //等待其他节点重建缓存时，每次重试间隔（毫秒）和最多重试次数（锁的有效期内）
+    private static final long MUTEX_RETRY_INTERVAL_MS = 50L;
+    private static final int MUTEX_MAX_RETRIES = 200;
+    //正在查询的key -> 查询结果，同一个JVM里同一个key同时只查一次
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    /**
+     * 合并的请求最多等领头的请求多久（毫秒），超时返回服务繁忙，不会一直占着请求线程
+     */
+    @Value("${hmdp.cache.single-flight.wait-ms:5000}")
+    private long singleFlightWaitMs;
+
+    /**
+     * 互斥锁解决缓存击穿
+     * 缓存未命中时，本节点同一个key的并发请求合并成一次（single-flight），
+     * 只有领头的请求去抢分布式锁、查数据库，其他请求等它的结果，不会各自休眠重试去轮询Redis
+     * @param keyHead 传入存入redis的key的前缀
+     * @param id 传入id
+     * @param type 传入泛型的类型
+     * @param dbFallback 传入数据库查询
+     * @param time 传入缓存时间
+     * @param unit 传入缓存时间单位
+     * @return 返回这个泛型
+     * @param <R> 需要传入的类型
+     * @param <ID> id可能多种类型
+     */
+    public <R,ID> R queryWithMutex(String keyHead, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        //0、布隆过滤器判断不存在，直接返回
+        if (!mightContain(keyHead, id)) {
+            return null;
+        }
+        String key = keyHead + id;
+        CacheMetrics.PrefixMeters metrics = cacheMetrics.of(keyHead);
+        //1、先查本地缓存
+        Object local = getLocal(key);
+        if (local != null) {
+            return fromLocal(local, type, metrics);
+        }
+        //2、从redis查询，命中直接返回
+        byte[] raw = getRaw(key);
+        if (raw != null) {
+            R r = raw.length > 0 ? tryDecode(key, raw, type) : null;
+            if (raw.length == 0 || r != null) {
+                (r == null ? metrics.nullHit : metrics.hit).increment();
+                putLocal(key, r);
+                return r;
+            }
+        }
+        //3、未命中，本节点同一个key只有一个请求去重建
+        metrics.miss.increment();
+        return type.cast(singleFlight(key, () -> rebuildWithLock(key, id, type, dbFallback, time, unit, metrics)));
+    }
+
+    /**
+     * 同一个key的并发调用共享同一个结果，只有第一个调用真正执行loader
+     * @param key 传入合并的key
+     * @param loader 传入真正的查询
+     * @return 返回查询结果
+     */
+    private Object singleFlight(String key, Supplier<Object> loader){
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            //已经有请求在查了，等它的结果，最多等singleFlightWaitMs
+            try {
+                return existing.get(singleFlightWaitMs, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+            } catch (TimeoutException e) {
+                log.warn("等待缓存重建超时，key={}", key);
+                throw new DbUnavailableException("等待缓存重建超时");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+        try {
+            Object value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 抢分布式锁重建缓存；锁在其他节点手里时间隔重试（循环，不递归），每次先看看缓存是不是已经建好了
+     */
+    private <R,ID> R rebuildWithLock(String key, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit,
+                                     CacheMetrics.PrefixMeters metrics){
+        String lockKey = LOCK_KEY + key;
+        for (int i = 0; i < MUTEX_MAX_RETRIES; i++) {
+            //1、其他节点可能已经重建好了（第一次进来时刚查过，跳过）
+            if (i > 0) {
+                byte[] raw = getRaw(key);
+                if (raw != null) {
+                    R r = raw.length > 0 ? tryDecode(key, raw, type) : null;
+                    if (raw.length == 0 || r != null) {
+                        putLocal(key, r);
+                        return r;
+                    }
+                }
+            }
+            //2、获取互斥锁，失败则等一会再看
+            if (!tryLock(lockKey)) {
+                metrics.lockFailure.increment();
+                try {
+                    Thread.sleep(MUTEX_RETRY_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+                continue;
+            }
+            try {
+                //3、拿到锁，查数据库并写入缓存
+                return loadAndCache(key, id, dbFallback, time, unit, metrics);
+            } finally {
+                unlock(lockKey);
+            }
+        }
+        //4、等太久了（持有锁的节点可能卡住了），直接查数据库
+        log.warn("等待缓存重建超时，直接查询数据库，key={}", key);
+        return loadAndCache(key, id, dbFallback, time, unit, metrics);
+    }
+
+    private <R,ID> R loadAndCache(String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit,
+                                  CacheMetrics.PrefixMeters metrics){
+        metrics.dbFallback.increment();
+        long begin = System.nanoTime();
+        String version = readVersion(key);
+        R r = dbFallback.apply(id);
+        //数据库里也没有，写入空值（防止缓存穿透）
+        boolean written = r == null
+                ? casSet(key, EMPTY, TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL), version)
+                : casSet(key, codec.encode(r), unit.toSeconds(time), version);
+        if (written) {
+            putLocal(key, r);
+        }
+        metrics.rebuild.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
         return r;
     }
-    //这里开有一个缓存池提供逻辑过期功能用
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
     /**
      * 逻辑过期解决缓存击穿
@@ -118,51 +1030,211 @@ public class CacheClient {
      */
     public <R,ID> R queryWithLogicalExpire(String keyHead,ID id,Class<R> type,Function<ID,R> dbFallback,Long time,TimeUnit unit){
         String key = keyHead + id;
+        CacheMetrics.PrefixMeters metrics = cacheMetrics.of(keyHead);
         //1、从redis查询店铺
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] raw = getRaw(key);
         //2、判断是否存在
-        if(StrUtil.isBlank(json)){
+        if(raw == null || raw.length == 0){
             //3、不存在，直接返回
+            metrics.miss.increment();
+            return null;
+        }
+        //4、命中，二进制格式的过期时间在固定的头部，不用先解码整个值
+        CacheCodec.LogicalEntry entry;
+        R r;
+        try {
+            entry = codec.decodeLogical(raw);
+            r = entry.getValue(type);
+        } catch (RuntimeException e) {
+            log.warn("缓存值解码失败，key={}，原因：{}", key, e.getMessage());
+            metrics.miss.increment();
             return null;
         }
-        //4、命中，需要把json反序列化为对象（因为这里有逻辑过期时间，所以得换两次）
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        //过期了也返回旧数据，算命中
+        metrics.hit.increment();
         //5、判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())){
+        long now = System.currentTimeMillis();
+        if(entry.getExpireMillis() > now){
             //5.1，未过期，直接返回商品信息
+            //开启提前刷新时，越接近过期、重建越慢，越可能由这次请求提前重建，各节点不会在过期那一刻一起抢锁
+            if (earlyRefreshEnabled && shouldRefreshEarly(now, entry)) {
+                rebuildLogicalAsync(keyHead, key, id, dbFallback, time, unit, metrics);
+            }
             return r;
         }
 
         //5.2、过期，需要缓存重建
         //6、缓存重建
-        //6.1、获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        //6.2、判断是否获取锁成功
-        boolean isLock = tryLock(lockKey);
-
-        if(isLock){
-            //6.3、成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                //重建缓存
-                try {
-                    //查询数据库
-                    R r1 = dbFallback.apply(id);
-                    //写入redis
-                    this.setWithLogicalExpire(key,r1,time,unit);
-                }catch (Exception e){
-                    throw new RuntimeException(e);
-                }finally {
-                    //释放锁
-                    unlock(lockKey);
+        rebuildLogicalAsync(keyHead, key, id, dbFallback, time, unit, metrics);
+        //6.4、返回过期的商铺信息
+        return r;
+    }
+
+    /**
+     * XFetch：now - delta * beta * ln(rand) >= expiry 时提前刷新
+     * rand在(0,1]之间，-ln(rand)服从指数分布，离过期越近、delta越大，满足的概率越高
+     */
+    private boolean shouldRefreshEarly(long now, CacheCodec.LogicalEntry entry) {
+        long delta = entry.getDeltaMillis();
+        if (delta <= 0) {
+            return false;
+        }
+        double rand = 1.0 - ThreadLocalRandom.current().nextDouble();
+        return now - delta * earlyRefreshBeta * Math.log(rand) >= entry.getExpireMillis();
+    }
+
+    private <R,ID> void rebuildLogicalAsync(String keyHead, String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit,
+                                            CacheMetrics.PrefixMeters metrics){
+        //6.1、交给重建线程池，本节点同一个key已经在排队或重建时直接跳过，请求线程不用访问Redis
+        cacheRebuildExecutor.submit(keyHead, key, () -> {
+            //6.2、获取互斥锁（按key的前缀区分），失败说明其他节点在重建
+            String lockKey = LOCK_KEY + key;
+            if (!tryLock(lockKey)) {
+                metrics.lockFailure.increment();
+                return;
+            }
+            //6.3、成功，重建缓存
+            try {
+                //查询数据库，记下花的时间
+                metrics.dbFallback.increment();
+                long rebuildBegin = System.nanoTime();
+                String version = readVersion(key);
+                long begin = System.currentTimeMillis();
+                R r1 = dbFallback.apply(id);
+                long delta = System.currentTimeMillis() - begin;
+                //写入redis（期间被修改过就不写）
+                long expireMillis = System.currentTimeMillis() + unit.toMillis(time);
+                casSet(key, codec.encodeLogical(r1, expireMillis, delta), 0, version);
+                metrics.rebuild.record(System.nanoTime() - rebuildBegin, TimeUnit.NANOSECONDS);
+            } finally {
+                //释放锁
+                unlock(lockKey);
+            }
+        });
+    }
+
+    /**
+     * stale-while-revalidate，数据库慢或者挂了时延迟不受影响
+     * 写入时缓存时间到期的时间戳存在旁边的key（cache:soft:{key}），Redis里的过期时间 = 缓存时间 + stale-seconds，
+     * 随机值只加在缓存时间上。读的时候过了到期时间：直接返回旧数据（响应头带上过期了多久），后台只用一个任务刷新；
+     * 刷新失败或者数据库熔断中时延长旧数据的过期时间（到期时间不变），一直返回旧数据；
+     * 缓存里完全没有时才同步查数据库（经过熔断器，熔断中抛DbUnavailableException）
+     * 值的格式和queryWithPassThrough一样，两种方式可以读同一个key；其他方式写的值没有到期时间，当作没过期，到了Redis过期时间再重新查
+     * @param keyHead 传入存入redis的key的前缀
+     * @param id 传入id
+     * @param type 传入泛型的类型
+     * @param dbFallback 传入数据库查询
+     * @param time 传入缓存时间（过了这个时间算旧数据）
+     * @param unit 传入缓存时间单位
+     * @return 返回这个泛型
+     * @param <R> 需要传入的类型
+     * @param <ID> id可能多种类型
+     */
+    public <R,ID> R queryWithStaleWhileRevalidate(String keyHead, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        //0、布隆过滤器判断不存在，直接返回
+        if (!mightContain(keyHead, id)) {
+            return null;
+        }
+        String key = keyHead + id;
+        CacheMetrics.PrefixMeters metrics = cacheMetrics.of(keyHead);
+        //1、先查本地缓存
+        Object local = getLocal(key);
+        if (local != null) {
+            return fromLocal(local, type, metrics);
+        }
+        //2、一次往返查出值和缓存时间到期的时间戳
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.get(rawKey(key));
+            connection.get(rawKey(softExpireKey(key)));
+            return null;
+        }, RedisSerializer.byteArray());
+        byte[] raw = (byte[]) results.get(0);
+        byte[] softExpire = (byte[]) results.get(1);
+        if (raw != null && raw.length > 0) {
+            R r = tryDecode(key, raw, type);
+            if (r != null) {
+                //3、过了缓存时间，返回旧数据，后台刷新
+                long staleMillis = softExpire == null ? 0
+                        : System.currentTimeMillis() - Long.parseLong(new String(softExpire, StandardCharsets.UTF_8));
+                if (staleMillis > 0) {
+                    metrics.stale.increment();
+                    CacheStaleHolder.markStale(staleMillis);
+                    refreshAsync(keyHead, key, id, dbFallback, time, unit, metrics);
+                    return r;
                 }
-            });
+                metrics.hit.increment();
+                putLocal(key, r);
+                return r;
+            }
+            //解码失败，当作未命中
+            raw = null;
         }
-        //6.4、返回过期的商铺信息
+        if (raw != null) {
+            metrics.nullHit.increment();
+            putLocal(key, null);
+            return null;
+        }
+        //4、缓存里没有，只能同步查数据库（熔断中直接失败，不等数据库）
+        metrics.miss.increment();
+        return loadWithBreaker(key, id, dbFallback, time, unit, metrics);
+    }
+
+    private <R,ID> R loadWithBreaker(String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit,
+                                     CacheMetrics.PrefixMeters metrics){
+        metrics.dbFallback.increment();
+        long begin = System.nanoTime();
+        String version = readVersion(key);
+        R r = dbCircuitBreaker.execute(() -> dbFallback.apply(id));
+        //随机值只加在缓存时间上，旧数据能留多久不变
+        long softSeconds = jitter(unit.toSeconds(time));
+        boolean written = r == null
+                ? casSet(key, EMPTY, TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL), version)
+                : casSet(key, codec.encode(r), softSeconds + staleSeconds, version,
+                        System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(softSeconds));
+        if (written) {
+            putLocal(key, r);
+        }
+        metrics.rebuild.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
         return r;
     }
 
+    private <R,ID> void refreshAsync(String keyHead, String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit,
+                                     CacheMetrics.PrefixMeters metrics){
+        cacheRebuildExecutor.submit(keyHead, key, () -> {
+            //1、熔断中，不查数据库，旧数据多留一会
+            if (dbCircuitBreaker.isOpen()) {
+                extendStale(key);
+                return;
+            }
+            //2、其他节点在刷新
+            String lockKey = LOCK_KEY + key;
+            if (!tryLock(lockKey)) {
+                metrics.lockFailure.increment();
+                return;
+            }
+            try {
+                loadWithBreaker(key, id, dbFallback, time, unit, metrics);
+            } catch (RuntimeException e) {
+                //3、刷新失败，旧数据多留一会，下次访问再试
+                log.warn("刷新缓存失败，继续返回旧数据，key={}，原因：{}", key, e.getMessage());
+                extendStale(key);
+            } finally {
+                unlock(lockKey);
+            }
+        });
+    }
+
+    /**
+     * 旧数据和它的到期时间戳再留stale-seconds，到期时间戳不变，过期了多久照常往上算
+     */
+    private void extendStale(String key) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.expire(rawKey(key), staleSeconds);
+            connection.expire(rawKey(softExpireKey(key)), staleSeconds);
+            return null;
+        });
+    }
+
     /**
      * 设置锁
      * @param key 传入锁的key值
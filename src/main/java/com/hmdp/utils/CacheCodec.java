@@ -0,0 +1,46 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码，CacheClient读写Redis时用
+ * 防止缓存穿透的空值由CacheClient用空字节数组表示，不经过这里
+ * 默认按 hmdp.cache.codec 选择json或binary，也可以自己注册一个CacheCodec的bean替换
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码普通缓存值
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 解码普通缓存值
+     * @param raw 传入redis里的字节
+     * @param type 传入要转成的类型
+     */
+    <R> R decode(byte[] raw, Class<R> type);
+
+    /**
+     * 编码带逻辑过期时间的缓存值
+     * @param value 传入缓存值
+     * @param expireMillis 传入逻辑过期时间（毫秒时间戳）
+     * @param deltaMillis 传入重建这个值花的时间（毫秒），不知道传0
+     */
+    byte[] encodeLogical(Object value, long expireMillis, long deltaMillis);
+
+    /**
+     * 解码带逻辑过期时间的缓存值，缓存值用到时才解码
+     */
+    LogicalEntry decodeLogical(byte[] raw);
+
+    /**
+     * 带逻辑过期时间的缓存值
+     */
+    interface LogicalEntry {
+
+        long getExpireMillis();
+
+        long getDeltaMillis();
+
+        <R> R getValue(Class<R> type);
+    }
+}
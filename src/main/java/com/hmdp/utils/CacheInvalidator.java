@@ -0,0 +1,108 @@
+package com.hmdp.utils;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 修改数据库后删除缓存
+ * 1、在事务里调用时，等事务提交以后再删（回滚了就不删），同一个事务里要删的key合并成一次管道删除；
+ * 不在事务里直接删
+ * 2、过一会再删一次（延迟双删），删掉第一次删除后、并发读线程用旧数据重建的缓存
+ * 可以直接调用，也可以在方法上加@InvalidateCache
+ */
+@Slf4j
+@Component
+public class CacheInvalidator {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 第二次删除的延迟（毫秒），要比一次查数据库加写缓存的时间长，0表示不做第二次删除
+     */
+    @Value("${hmdp.cache.double-delete-delay-ms:500}")
+    private long doubleDeleteDelayMs;
+
+    private HashedWheelTimer timer;
+
+    @PostConstruct
+    private void init() {
+        //100毫秒一格，延迟都很短，512格足够
+        timer = new HashedWheelTimer(new DefaultThreadFactory("cache-invalidate", true), 100, TimeUnit.MILLISECONDS, 512);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        timer.stop();
+    }
+
+    /**
+     * 删除缓存，在事务里就等提交以后再删
+     * @param keys 传入要删除的key
+     */
+    @SuppressWarnings("unchecked")
+    public void invalidate(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            deleteTwice(keys);
+            return;
+        }
+        //1、同一个事务只注册一次，后面要删的key都放进同一个集合
+        Set<String> pending = (Set<String>) TransactionSynchronizationManager.getResource(this);
+        if (pending == null) {
+            Set<String> registered = new LinkedHashSet<>();
+            TransactionSynchronizationManager.bindResource(this, registered);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    deleteTwice(registered);
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    //提交或回滚都要解绑，回滚时什么都不删
+                    TransactionSynchronizationManager.unbindResourceIfPossible(CacheInvalidator.this);
+                }
+            });
+            pending = registered;
+        }
+        //2、事务提交以后再删
+        pending.addAll(keys);
+    }
+
+    private void deleteTwice(Collection<String> keys) {
+        //1、马上删一次
+        try {
+            cacheClient.delete(keys);
+        } catch (Exception e) {
+            //数据库已经提交了，删除失败只能靠第二次删除和过期时间兜底
+            log.error("删除缓存失败，keys={}", keys, e);
+        }
+        //2、过一会再删一次
+        if (doubleDeleteDelayMs <= 0) {
+            return;
+        }
+        timer.newTimeout(timeout -> {
+            try {
+                cacheClient.delete(keys);
+            } catch (Exception e) {
+                log.error("延迟删除缓存失败，keys={}", keys, e);
+            }
+        }, doubleDeleteDelayMs, TimeUnit.MILLISECONDS);
+    }
+}
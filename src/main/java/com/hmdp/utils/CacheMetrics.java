@@ -0,0 +1,95 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存指标，按key前缀（prefix标签）区分
+ * cache.gets 查询次数，result标签：hit（Redis命中）、local_hit（本地缓存命中）、null_hit（命中空值）、
+ * stale（返回了过期的数据，后台刷新）、miss（未命中）
+ * cache.db.fallbacks 查数据库的次数，cache.lock.failures 抢锁失败次数，cache.rebuild.latency 查数据库加写回缓存的耗时
+ */
+@Component
+public class CacheMetrics {
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    //key前缀 -> 这个前缀的指标，每次查询不用再按名字和标签去注册表里找
+    private final Map<String, PrefixMeters> meters = new ConcurrentHashMap<>();
+
+    /**
+     * 一个key前缀的所有指标
+     */
+    public static class PrefixMeters {
+        final Counter hit;
+        final Counter localHit;
+        final Counter nullHit;
+        final Counter stale;
+        final Counter miss;
+        final Counter dbFallback;
+        final Counter lockFailure;
+        final Timer rebuild;
+
+        private PrefixMeters(MeterRegistry registry, String prefix) {
+            hit = gets(registry, prefix, "hit");
+            localHit = gets(registry, prefix, "local_hit");
+            nullHit = gets(registry, prefix, "null_hit");
+            stale = gets(registry, prefix, "stale");
+            miss = gets(registry, prefix, "miss");
+            dbFallback = Counter.builder("cache.db.fallbacks").tag("prefix", prefix)
+                    .description("缓存未命中查数据库的次数")
+                    .register(registry);
+            lockFailure = Counter.builder("cache.lock.failures").tag("prefix", prefix)
+                    .description("重建缓存抢锁失败的次数")
+                    .register(registry);
+            rebuild = Timer.builder("cache.rebuild.latency").tag("prefix", prefix)
+                    .description("查数据库并写回缓存的耗时")
+                    .register(registry);
+        }
+
+        private static Counter gets(MeterRegistry registry, String prefix, String result) {
+            return Counter.builder("cache.gets").tag("prefix", prefix).tag("result", result)
+                    .description("缓存查询次数")
+                    .register(registry);
+        }
+    }
+
+    public PrefixMeters of(String keyHead) {
+        return meters.computeIfAbsent(keyHead, prefix -> new PrefixMeters(meterRegistry, prefix));
+    }
+
+    /**
+     * 每个key前缀的统计，给actuator端点用
+     */
+    public Map<String, Map<String, Object>> snapshot() {
+        Map<String, Map<String, Object>> result = new TreeMap<>();
+        meters.forEach((prefix, m) -> {
+            double hits = m.hit.count() + m.localHit.count() + m.nullHit.count() + m.stale.count();
+            double total = hits + m.miss.count();
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("hits", (long) m.hit.count());
+            stats.put("localHits", (long) m.localHit.count());
+            stats.put("nullHits", (long) m.nullHit.count());
+            stats.put("staleHits", (long) m.stale.count());
+            stats.put("misses", (long) m.miss.count());
+            stats.put("hitRate", total == 0 ? 0 : hits / total);
+            stats.put("dbFallbacks", (long) m.dbFallback.count());
+            stats.put("lockFailures", (long) m.lockFailure.count());
+            stats.put("rebuilds", m.rebuild.count());
+            stats.put("rebuildMeanMs", m.rebuild.mean(TimeUnit.MILLISECONDS));
+            stats.put("rebuildMaxMs", m.rebuild.max(TimeUnit.MILLISECONDS));
+            result.put(prefix, stats);
+        });
+        return result;
+    }
+}
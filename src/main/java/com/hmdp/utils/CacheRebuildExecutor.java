@@ -0,0 +1,104 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存异步重建的线程池，所有缓存共用
+ * 队列有界，满了直接拒绝（调用方继续返回旧数据，下次访问再重建）；
+ * 同一个缓存key在排队或者执行中时不会重复提交；任务的异常记日志，不会丢掉
+ * 指标：cache.rebuild.queue.depth 排队数，cache.rebuild.rejected 拒绝数，
+ * cache.rebuild.deduped 去重数，cache.rebuild.failed 失败数；重建耗时由CacheClient记在cache.rebuild.latency（见CacheMetrics）
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int threads;
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor executor;
+    //排队或执行中的缓存key
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private Counter rejectedCounter;
+    private Counter dedupedCounter;
+    private Counter failedCounter;
+
+    @PostConstruct
+    private void init() {
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new DefaultThreadFactory("cache-rebuild", true));
+        Gauge.builder("cache.rebuild.queue.depth", executor, e -> e.getQueue().size())
+                .description("等待重建的缓存数")
+                .register(meterRegistry);
+        rejectedCounter = Counter.builder("cache.rebuild.rejected")
+                .description("队列满了被拒绝的重建次数")
+                .register(meterRegistry);
+        dedupedCounter = Counter.builder("cache.rebuild.deduped")
+                .description("已经在重建中被跳过的次数")
+                .register(meterRegistry);
+        failedCounter = Counter.builder("cache.rebuild.failed")
+                .description("重建失败的次数")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdown();
+    }
+
+    /**
+     * 提交重建任务
+     * @param keyHead 传入key的前缀
+     * @param key 传入缓存key，同一个key同时只有一个任务
+     * @param task 传入重建任务
+     * @return 返回是否提交成功（重复或队列满了返回false）
+     */
+    public boolean submit(String keyHead, String key, Runnable task) {
+        //1、同一个key已经在重建，跳过
+        if (!pending.add(key)) {
+            dedupedCounter.increment();
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    failedCounter.increment();
+                    log.error("缓存重建失败，keyHead={}，key={}", keyHead, key, e);
+                } finally {
+                    pending.remove(key);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            //2、队列满了，这次不重建
+            pending.remove(key);
+            rejectedCounter.increment();
+            log.warn("缓存重建队列已满，key={}", key);
+            return false;
+        }
+    }
+}
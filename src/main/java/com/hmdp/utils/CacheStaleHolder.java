@@ -0,0 +1,24 @@
+package com.hmdp.utils;
+
+/**
+ * 记录当前请求是否返回了过期的缓存数据，以及过期了多久（毫秒），写响应时加到响应头里
+ */
+public class CacheStaleHolder {
+    private static final ThreadLocal<Long> tl = new ThreadLocal<>();
+
+    public static void markStale(long staleMillis){
+        //一个请求查了多个缓存，取过期最久的
+        Long old = tl.get();
+        if (old == null || staleMillis > old) {
+            tl.set(staleMillis);
+        }
+    }
+
+    public static Long getStaleMillis(){
+        return tl.get();
+    }
+
+    public static void remove(){
+        tl.remove();
+    }
+}
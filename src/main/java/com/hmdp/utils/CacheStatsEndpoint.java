@@ -0,0 +1,25 @@
+package com.hmdp.utils;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * 查看每个key前缀的缓存命中率等统计：GET /actuator/cachestats
+ * 需要在 management.endpoints.web.exposure.include 里加上 cachestats；完整的指标在 /actuator/metrics/cache.gets 等
+ */
+@Component
+@Endpoint(id = "cachestats")
+public class CacheStatsEndpoint {
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @ReadOperation
+    public Map<String, Map<String, Object>> cacheStats() {
+        return cacheMetrics.snapshot();
+    }
+}
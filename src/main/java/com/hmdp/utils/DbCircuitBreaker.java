@@ -0,0 +1,118 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 缓存回源数据库的熔断器
+ * 连续失败（抛异常或者太慢）达到阈值后打开，打开期间不查数据库直接抛DbUnavailableException；
+ * 过了open-ms以后放一个请求去试（半开），成功就关闭，失败继续打开
+ * 指标：db.circuit.open（1表示打开）
+ */
+@Slf4j
+@Component
+public class DbCircuitBreaker {
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 连续失败多少次打开
+     */
+    @Value("${hmdp.cache.db-breaker.failure-threshold:5}")
+    private int failureThreshold;
+    /**
+     * 打开多久（毫秒）后放一个请求去试
+     */
+    @Value("${hmdp.cache.db-breaker.open-ms:10000}")
+    private long openMs;
+    /**
+     * 超过这个耗时（毫秒）也算失败
+     */
+    @Value("${hmdp.cache.db-breaker.slow-call-ms:2000}")
+    private long slowCallMs;
+
+    private final AtomicInteger failures = new AtomicInteger();
+    //打开到什么时候，0表示关闭
+    private volatile long openUntil;
+    //半开时只放一个请求
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    @PostConstruct
+    private void init() {
+        Gauge.builder("db.circuit.open", this, b -> b.isOpen() ? 1 : 0)
+                .description("缓存回源数据库的熔断器是否打开")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 通过熔断器查数据库
+     * @param call 传入数据库查询
+     * @return 返回查询结果
+     * @throws DbUnavailableException 熔断中
+     */
+    public <T> T execute(Supplier<T> call) {
+        //1、打开中，或者半开时已经有请求在试
+        if (!allowRequest()) {
+            throw new DbUnavailableException("数据库熔断中，暂不查询");
+        }
+        long begin = System.nanoTime();
+        T result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            onFailure();
+            throw e;
+        }
+        //2、太慢也算失败，但结果照样返回
+        if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) > slowCallMs) {
+            onFailure();
+        } else {
+            onSuccess();
+        }
+        return result;
+    }
+
+    public boolean isOpen() {
+        return System.currentTimeMillis() < openUntil;
+    }
+
+    private boolean allowRequest() {
+        long until = openUntil;
+        if (until == 0) {
+            return true;
+        }
+        if (System.currentTimeMillis() < until) {
+            return false;
+        }
+        //半开，只放一个请求去试
+        return probing.compareAndSet(false, true);
+    }
+
+    private void onSuccess() {
+        failures.set(0);
+        if (openUntil != 0) {
+            openUntil = 0;
+            probing.set(false);
+            log.info("数据库熔断器关闭");
+        }
+    }
+
+    private void onFailure() {
+        if (failures.incrementAndGet() >= failureThreshold) {
+            openUntil = System.currentTimeMillis() + openMs;
+            probing.set(false);
+            log.warn("数据库熔断器打开，{}ms后重试", openMs);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.hmdp.utils;
+
+/**
+ * 数据库熔断中，不去查数据库
+ */
+public class DbUnavailableException extends RuntimeException {
+
+    public DbUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,190 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 热点key探测：按比例抽样访问，用count-min sketch计数，统计最近一个滑动窗口内的访问量，维护访问量最高的K个key
+ * 滑动窗口分成若干个桶，每个桶一个sketch，过了一个桶的时间就清掉最旧的桶
+ * 估算值只会偏大不会偏小，宽度越大偏差越小
+ */
+public class HotKeyDetector {
+
+    //sketch的行数（哈希函数个数）和每行的宽度
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+
+    private final double sampleRatio;
+    private final long threshold;
+    private final int topK;
+    private final long bucketMillis;
+    //每个桶一个sketch，DEPTH * WIDTH个计数
+    private final AtomicIntegerArray[] buckets;
+    //当前桶对应的时间段编号（时间 / bucketMillis）
+    private volatile long currentSlot;
+
+    //访问量最高的K个key -> 估算的访问量（已经按抽样比例还原），修改时锁住top
+    private final Map<String, Long> top = new ConcurrentHashMap<>();
+    //top满了以后其中最小的访问量，比它小的不用加锁就能跳过
+    private volatile long topMin;
+    //超过阈值的key
+    private final Set<String> hotKeys = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param sampleRatio 传入抽样比例，(0,1]
+     * @param threshold 传入一个窗口内访问多少次算热点
+     * @param topK 传入保留多少个访问量最高的key
+     * @param windowMillis 传入窗口长度（毫秒）
+     * @param bucketCount 传入窗口分成几个桶
+     */
+    public HotKeyDetector(double sampleRatio, long threshold, int topK, long windowMillis, int bucketCount) {
+        this.sampleRatio = sampleRatio;
+        this.threshold = threshold;
+        this.topK = topK;
+        this.bucketMillis = Math.max(1, windowMillis / bucketCount);
+        this.buckets = new AtomicIntegerArray[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            buckets[i] = new AtomicIntegerArray(DEPTH * WIDTH);
+        }
+        this.currentSlot = System.currentTimeMillis() / bucketMillis;
+    }
+
+    /**
+     * 记录一次访问（按比例抽样）
+     * @param key 传入访问的key
+     * @return 返回这个key现在是不是热点
+     */
+    public boolean record(String key) {
+        if (sampleRatio < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRatio) {
+            return hotKeys.contains(key);
+        }
+        //1、过了一个桶的时间，清掉过期的桶
+        long slot = System.currentTimeMillis() / bucketMillis;
+        if (slot != currentSlot) {
+            rotate(slot);
+        }
+        //2、当前桶里加一，再估算整个窗口的访问量
+        int[] indexes = indexes(key);
+        AtomicIntegerArray bucket = buckets[(int) (slot % buckets.length)];
+        for (int i = 0; i < DEPTH; i++) {
+            bucket.incrementAndGet(indexes[i]);
+        }
+        long count = estimate(indexes);
+        //3、更新top K和热点
+        offer(key, count);
+        return hotKeys.contains(key);
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.contains(key);
+    }
+
+    /**
+     * 当前访问量最高的K个key，按访问量从高到低
+     */
+    public List<Map.Entry<String, Long>> topKeys() {
+        List<Map.Entry<String, Long>> list = new ArrayList<>(top.size());
+        for (Map.Entry<String, Long> entry : top.entrySet()) {
+            list.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+        }
+        list.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return list;
+    }
+
+    private void offer(String key, long count) {
+        //大部分key访问量不高，不加锁直接跳过
+        if (count <= topMin && top.size() >= topK && !top.containsKey(key)) {
+            return;
+        }
+        synchronized (top) {
+            if (top.containsKey(key) || top.size() < topK) {
+                top.put(key, count);
+            } else {
+                //满了，比最小的大才替换
+                String minKey = minKey();
+                if (count <= top.get(minKey)) {
+                    return;
+                }
+                top.remove(minKey);
+                hotKeys.remove(minKey);
+                top.put(key, count);
+            }
+            if (top.size() >= topK) {
+                topMin = top.get(minKey());
+            }
+            if (count >= threshold) {
+                hotKeys.add(key);
+            }
+        }
+    }
+
+    private String minKey() {
+        String minKey = null;
+        long min = Long.MAX_VALUE;
+        for (Map.Entry<String, Long> entry : top.entrySet()) {
+            if (entry.getValue() < min) {
+                min = entry.getValue();
+                minKey = entry.getKey();
+            }
+        }
+        return minKey;
+    }
+
+    private synchronized void rotate(long slot) {
+        long from = currentSlot;
+        if (slot <= from) {
+            return;
+        }
+        //1、清掉这段时间里跳过的桶（最多清一圈）
+        for (long s = Math.max(from + 1, slot - buckets.length + 1); s <= slot; s++) {
+            AtomicIntegerArray bucket = buckets[(int) (s % buckets.length)];
+            for (int i = 0; i < bucket.length(); i++) {
+                bucket.set(i, 0);
+            }
+        }
+        currentSlot = slot;
+        //2、重新估算top K，访问量降下来的不再是热点
+        synchronized (top) {
+            top.replaceAll((key, old) -> estimate(indexes(key)));
+            top.values().removeIf(count -> count == 0);
+            topMin = top.size() >= topK ? top.get(minKey()) : 0;
+            hotKeys.removeIf(key -> {
+                Long count = top.get(key);
+                return count == null || count < threshold;
+            });
+        }
+    }
+
+    private long estimate(int[] indexes) {
+        long total = 0;
+        for (AtomicIntegerArray bucket : buckets) {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, bucket.get(indexes[i]));
+            }
+            total += min;
+        }
+        //还原抽样
+        return (long) (total / sampleRatio);
+    }
+
+    private static int[] indexes(String key) {
+        long[] hash = MurmurHash.hash128(key.getBytes(StandardCharsets.UTF_8));
+        int[] indexes = new int[DEPTH];
+        long combined = hash[0];
+        for (int i = 0; i < DEPTH; i++) {
+            indexes[i] = i * WIDTH + (int) ((combined & Long.MAX_VALUE) % WIDTH);
+            combined += hash[1];
+        }
+        return indexes;
+    }
+}
@@ -0,0 +1,38 @@
+package com.hmdp.utils;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 查看当前的热点key：GET /actuator/hotkeys
+ * 需要在 management.endpoints.web.exposure.include 里加上 hotkeys
+ */
+@Component
+@Endpoint(id = "hotkeys")
+public class HotKeyEndpoint {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @ReadOperation
+    public List<Map<String, Object>> hotKeys() {
+        List<Map.Entry<String, Long>> top = cacheClient.hotKeys();
+        List<Map<String, Object>> result = new ArrayList<>(top.size());
+        for (Map.Entry<String, Long> entry : top) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", entry.getKey());
+            //最近一个窗口内的估算访问量
+            item.put("count", entry.getValue());
+            item.put("pinned", cacheClient.isPinned(entry.getKey()));
+            result.add(item);
+        }
+        return result;
+    }
+}
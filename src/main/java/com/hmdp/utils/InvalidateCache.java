@@ -0,0 +1,26 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 方法正常返回后删除缓存（在事务里就等提交以后），见CacheInvalidator
+ * 例：@InvalidateCache(prefix = RedisConstants.CACHE_SHOP_KEY, key = "#shop.id")
+ * 同一份数据缓存在多个前缀下时都写上：prefix = {CACHE_SHOP_KEY, CACHE_SHOP_HASH_KEY}
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface InvalidateCache {
+
+    /**
+     * 缓存key的前缀，每个前缀都删
+     */
+    String[] prefix();
+
+    /**
+     * SpEL表达式，用#参数名取参数，结果可以是一个id，也可以是集合或数组（批量删除）；结果为null不删
+     */
+    String key();
+}
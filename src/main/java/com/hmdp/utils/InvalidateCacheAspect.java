@@ -0,0 +1,71 @@
+package com.hmdp.utils;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.context.expression.MethodBasedEvaluationContext;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 处理@InvalidateCache：方法正常返回后算出要删的key，交给CacheInvalidator
+ */
+@Aspect
+@Component
+public class InvalidateCacheAspect {
+
+    private static final SpelExpressionParser PARSER = new SpelExpressionParser();
+    private static final ParameterNameDiscoverer NAME_DISCOVERER = new DefaultParameterNameDiscoverer();
+
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    //表达式解析一次就缓存起来
+    private final Map<String, Expression> expressions = new ConcurrentHashMap<>();
+
+    @Around("@annotation(invalidateCache)")
+    public Object around(ProceedingJoinPoint joinPoint, InvalidateCache invalidateCache) throws Throwable {
+        //1、先执行方法，抛异常就不删
+        Object result = joinPoint.proceed();
+        //2、算出要删的key
+        Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        MethodBasedEvaluationContext context =
+                new MethodBasedEvaluationContext(joinPoint.getTarget(), method, joinPoint.getArgs(), NAME_DISCOVERER);
+        Object value = expressions.computeIfAbsent(invalidateCache.key(), PARSER::parseExpression).getValue(context);
+        List<String> keys = new ArrayList<>();
+        for (String prefix : invalidateCache.prefix()) {
+            if (value instanceof Iterable) {
+                for (Object id : (Iterable<?>) value) {
+                    addKey(keys, prefix, id);
+                }
+            } else if (value != null && value.getClass().isArray()) {
+                for (int i = 0; i < Array.getLength(value); i++) {
+                    addKey(keys, prefix, Array.get(value, i));
+                }
+            } else {
+                addKey(keys, prefix, value);
+            }
+        }
+        //3、在事务里就等提交以后再删
+        cacheInvalidator.invalidate(keys);
+        return result;
+    }
+
+    private static void addKey(List<String> keys, String prefix, Object id) {
+        if (id != null) {
+            keys.add(prefix + id);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * json编解码，和原来的格式一样：普通值直接存json，逻辑过期的值存RedisData的json
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] raw, Class<R> type) {
+        return JSONUtil.toBean(new String(raw, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public byte[] encodeLogical(Object value, long expireMillis, long deltaMillis) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setDelta(deltaMillis);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireMillis), ZoneId.systemDefault()));
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public LogicalEntry decodeLogical(byte[] raw) {
+        //需要把json反序列化为对象（因为这里有逻辑过期时间，所以得换两次）
+        RedisData redisData = JSONUtil.toBean(new String(raw, StandardCharsets.UTF_8), RedisData.class);
+        long expireMillis = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        //以前写的没有delta
+        long deltaMillis = redisData.getDelta() == null ? 0 : redisData.getDelta();
+        return new LogicalEntry() {
+            @Override
+            public long getExpireMillis() {
+                return expireMillis;
+            }
+
+            @Override
+            public long getDeltaMillis() {
+                return deltaMillis;
+            }
+
+            @Override
+            public <R> R getValue(Class<R> type) {
+                return JSONUtil.toBean((JSONObject) redisData.getData(), type);
+            }
+        };
+    }
+}
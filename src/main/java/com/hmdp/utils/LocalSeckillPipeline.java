@@ -0,0 +1,563 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单节点部署的本地秒杀流水线（hmdp.seckill.mode=local），不依赖Redis的lua脚本和消息队列
+ * 请求线程把下单请求写进预先分配好的环形缓冲区，由唯一的消费者线程按顺序处理：
+ * 库存和下单用户都只在消费者线程里读写，不需要加锁；
+ * 一批请求处理完后先追加写入WAL文件并刷盘，再通知请求线程下单成功，最后交给批量写入器写数据库。
+ * WAL分段（wal-path.1、wal-path.2 ...），每段写满wal-segment-records条换下一段，一段里的订单都写进数据库后删除这一段，
+ * 持续有流量时WAL也不会一直变大；写库彻底失败的订单另外记在wal-path.failed里，也算处理完，不会卡住这一段。
+ * 节点宕机重启时，先把WAL（包括.failed）里的订单幂等写入数据库，再从数据库加载库存，不会超卖也不会丢单。
+ * 回放在应用启动完成后进行（启动过程中写库用到的bean还在创建，会互相等待），回放完之前拒绝下单。
+ * 多节点部署时库存不共享，只能用Redis模式
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.mode", havingValue = "local")
+public class LocalSeckillPipeline {
+
+    public static final int SUCCESS = 0;
+    public static final int NO_STOCK = 1;
+    public static final int DUPLICATE = 2;
+    public static final int BUSY = 3;
+
+    private static final int TYPE_ORDER = 0;
+    private static final int TYPE_RETURN = 1;
+    //订单状态：已取消
+    private static final int ORDER_STATUS_CANCELLED = 4;
+    //WAL里每条订单：订单id、用户id、优惠券id
+    private static final int WAL_RECORD_SIZE = 24;
+    //消费者每批最多处理多少个请求
+    private static final int MAX_BATCH = 1024;
+    //没有请求时先自旋多少次再休眠
+    private static final int SPIN_TRIES = 100;
+    //WAL回放时写库失败的订单隔多久重试（秒）
+    private static final long REPLAY_RETRY_SECONDS = 5;
+
+    /**
+     * 缓冲区里的一个槽位，创建时分配好，反复使用
+     */
+    private static class Event {
+        private int type;
+        private long voucherId;
+        private long userId;
+        private long orderId;
+        private CompletableFuture<Integer> result;
+    }
+
+    /**
+     * WAL的一段，写入和删除都在消费者线程里，写库后的计数在批量写入器的线程里
+     */
+    private static class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        //写进这一段的订单数（只有消费者线程修改）和已经处理完（写入数据库或者记进.failed）的订单数
+        private long appended;
+        private final AtomicLong persisted = new AtomicLong();
+
+        private Segment(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * 一张秒杀券的库存和已下单用户，只有消费者线程会修改
+     */
+    private static class VoucherState {
+        private volatile int stock;
+        private final LongHashSet users;
+
+        private VoucherState(int stock, LongHashSet users) {
+            this.stock = stock;
+            this.users = users;
+        }
+    }
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private VoucherOrderBatchWriter voucherOrderBatchWriter;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 环形缓冲区的容量，必须是2的幂，满了以后直接拒绝请求
+     */
+    @Value("${hmdp.seckill.local.buffer-size:65536}")
+    private int bufferSize;
+    /**
+     * WAL文件的位置
+     */
+    @Value("${hmdp.seckill.local.wal-path:seckill-orders.wal}")
+    private String walPath;
+    /**
+     * WAL每段最多多少条订单，写满换下一段
+     */
+    @Value("${hmdp.seckill.local.wal-segment-records:100000}")
+    private long walSegmentRecords;
+    /**
+     * 启动时回放WAL超过多久（秒）没完成就报警，继续等，期间一直拒绝下单
+     */
+    @Value("${hmdp.seckill.local.replay-timeout-seconds:60}")
+    private long replayTimeoutSeconds;
+    /**
+     * 下单请求最多等消费者处理多久（毫秒），超时返回系统繁忙，不会一直占着请求线程
+     */
+    @Value("${hmdp.seckill.local.submit-timeout-ms:3000}")
+    private long submitTimeoutMs;
+
+    private MpscRingBuffer<Event> ring;
+    private final Map<Long, VoucherState> states = new ConcurrentHashMap<>();
+    private Path walBase;
+    //还没删除的WAL段，最后一段是正在写的，只有消费者线程访问
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long nextSegment = 1;
+    private final ByteBuffer walBuffer = ByteBuffer.allocateDirect(MAX_BATCH * WAL_RECORD_SIZE);
+    //写库彻底失败的订单，在批量写入器的线程里追加
+    private FileChannel failedWal;
+
+    //当前批次里下单成功、等待刷盘的订单
+    private final List<VoucherOrder> batchOrders = new ArrayList<>(MAX_BATCH);
+    private final List<CompletableFuture<Integer>> batchResults = new ArrayList<>(MAX_BATCH);
+
+    private Thread consumerThread;
+    private volatile boolean running = true;
+    //WAL回放完才接收请求
+    private volatile boolean ready;
+
+    @PostConstruct
+    private void init() {
+        ring = new MpscRingBuffer<>(bufferSize, Event::new);
+        walBase = Paths.get(walPath).toAbsolutePath();
+        if (walBase.getParent() != null) {
+            walBase.getParent().toFile().mkdirs();
+        }
+        Gauge.builder("seckill.local.ring.backlog", ring, MpscRingBuffer::backlog)
+                .description("环形缓冲区里等待处理的请求数")
+                .register(meterRegistry);
+        //消费者线程先启动，回放完之前缓冲区里没有请求
+        consumerThread = new Thread(this::runConsumer, "seckill-local-consumer");
+        consumerThread.setDaemon(true);
+        consumerThread.start();
+    }
+
+    /**
+     * 应用启动完成后回放WAL：不能放在@PostConstruct里，写库要用的bean（@Lazy的service等）这时还在创建，
+     * 写线程拿这些bean时要等启动线程释放单例锁，启动线程又在等回放，互相等到超时
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() throws IOException, InterruptedException {
+        //1、上次没写完的订单先写入数据库，之后才能从数据库加载库存
+        replayWal();
+        failedWal = FileChannel.open(failedPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        //2、开始接收请求
+        ready = true;
+        log.info("秒杀使用本地模式，WAL文件：{}", walBase);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException, IOException {
+        running = false;
+        consumerThread.join(TimeUnit.SECONDS.toMillis(10));
+        for (Segment segment : segments) {
+            segment.channel.close();
+        }
+        if (failedWal != null) {
+            failedWal.close();
+        }
+    }
+
+    /**
+     * 下单，阻塞到消费者处理完并且订单已经写进WAL，最多等submit-timeout-ms
+     * 超时的请求如果消费者还没处理就不会再处理；已经在刷盘的这一批里的订单照常生效（客户端轮询订单状态能查到）
+     * @return SUCCESS / NO_STOCK / DUPLICATE / BUSY（缓冲区满了、WAL还没回放完、超时、写WAL失败）
+     */
+    public int submit(long voucherId, long userId, long orderId) {
+        if (!ready) {
+            return BUSY;
+        }
+        long seq = ring.tryClaim();
+        if (seq < 0) {
+            return BUSY;
+        }
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        Event event = ring.get(seq);
+        event.type = TYPE_ORDER;
+        event.voucherId = voucherId;
+        event.userId = userId;
+        event.orderId = orderId;
+        event.result = result;
+        ring.publish(seq);
+        try {
+            return result.get(submitTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            //消费者已经给了结果就用它的结果
+            if (result.complete(BUSY)) {
+                log.warn("秒杀请求等待超时，voucherId={}，orderId={}", voucherId, orderId);
+            }
+            return result.getNow(BUSY);
+        } catch (ExecutionException e) {
+            //写WAL失败，这一批已经撤销
+            return BUSY;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.complete(BUSY);
+            return result.getNow(BUSY);
+        }
+    }
+
+    /**
+     * 订单取消后把库存还回来，数据库已经改完以后调用
+     */
+    public void returnStock(long voucherId, long userId) {
+        //还没回放完时不会有已经加载的券，之后从数据库加载时已经是还过的库存
+        if (!ready) {
+            return;
+        }
+        long seq;
+        while ((seq = ring.tryClaim()) < 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        Event event = ring.get(seq);
+        event.type = TYPE_RETURN;
+        event.voucherId = voucherId;
+        event.userId = userId;
+        event.result = null;
+        ring.publish(seq);
+    }
+
+    /**
+     * 剩余库存，还没加载过返回null
+     */
+    public Integer remainingStock(long voucherId) {
+        VoucherState state = states.get(voucherId);
+        return state == null ? null : state.stock;
+    }
+
+    private void runConsumer() {
+        long next = 0;
+        int idle = 0;
+        while (running || ring.isPublished(next)) {
+            //1、把已经发布的请求一次处理完
+            int n = 0;
+            while (n < MAX_BATCH && ring.isPublished(next)) {
+                handle(ring.get(next));
+                next++;
+                n++;
+            }
+            //2、删除订单都处理完了的WAL段
+            releasePersistedSegments();
+            if (n == 0) {
+                //3、没有请求：先自旋，再短暂休眠
+                if (++idle < SPIN_TRIES) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+                }
+                continue;
+            }
+            idle = 0;
+            //4、整批刷盘后再通知请求线程，然后释放槽位
+            commit();
+            ring.release(next - 1);
+        }
+    }
+
+    private void handle(Event event) {
+        CompletableFuture<Integer> result = event.result;
+        event.result = null;
+        try {
+            if (event.type == TYPE_RETURN) {
+                //还库存：用户还在已下单用户里才还，重复调用不会多还
+                VoucherState state = states.get(event.voucherId);
+                if (state != null && state.users.remove(event.userId)) {
+                    state.stock++;
+                }
+                return;
+            }
+            //请求线程已经等超时返回了，不再处理
+            if (result.isDone()) {
+                return;
+            }
+            VoucherState state = states.computeIfAbsent(event.voucherId, this::loadState);
+            //1、一人一单
+            if (state.users.contains(event.userId)) {
+                result.complete(DUPLICATE);
+                return;
+            }
+            //2、判断库存
+            if (state.stock <= 0) {
+                result.complete(NO_STOCK);
+                return;
+            }
+            //3、扣库存，记录下单用户，等这一批刷盘
+            state.stock--;
+            state.users.add(event.userId);
+            VoucherOrder order = new VoucherOrder();
+            order.setId(event.orderId);
+            order.setUserId(event.userId);
+            order.setVoucherId(event.voucherId);
+            batchOrders.add(order);
+            batchResults.add(result);
+        } catch (Exception e) {
+            log.error("处理秒杀请求异常，voucherId={}", event.voucherId, e);
+            if (result != null) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 第一次遇到这张券时从数据库加载：剩余库存和已下单用户（WAL已经回放过，数据库是准的）
+     */
+    private VoucherState loadState(Long voucherId) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        List<Long> userIds = voucherOrderService.listObjs(new QueryWrapper<VoucherOrder>()
+                .select("user_id")
+                .eq("voucher_id", voucherId)
+                .ne("status", ORDER_STATUS_CANCELLED), o -> ((Number) o).longValue());
+        LongHashSet users = new LongHashSet(Math.max(16, userIds.size() * 2));
+        for (Long userId : userIds) {
+            users.add(userId);
+        }
+        int stock = voucher == null ? 0 : voucher.getStock();
+        log.info("加载秒杀券，voucherId={}，stock={}，orders={}", voucherId, stock, userIds.size());
+        return new VoucherState(stock, users);
+    }
+
+    private void commit() {
+        if (batchOrders.isEmpty()) {
+            return;
+        }
+        try {
+            //1、追加写入WAL并刷盘，写失败就撤销这一批
+            Segment segment;
+            try {
+                segment = appendWal(batchOrders);
+            } catch (IOException e) {
+                log.error("写WAL失败，撤销{}个订单", batchOrders.size(), e);
+                for (VoucherOrder order : batchOrders) {
+                    VoucherState state = states.get(order.getVoucherId());
+                    if (state.users.remove(order.getUserId())) {
+                        state.stock++;
+                    }
+                }
+                for (CompletableFuture<Integer> result : batchResults) {
+                    result.completeExceptionally(e);
+                }
+                return;
+            }
+            //2、通知请求线程下单成功
+            for (CompletableFuture<Integer> result : batchResults) {
+                result.complete(SUCCESS);
+            }
+            //3、记录排队中的状态（只是给客户端轮询用，失败不影响下单）
+            try {
+                seckillOrderStatus.markQueued(batchOrders);
+            } catch (Exception e) {
+                log.warn("记录订单排队状态失败：{}", e.getMessage());
+            }
+            //4、交给批量写入器，写入数据库（或者彻底失败记进.failed）后计数，一段里的订单都处理完了才能删除这一段
+            AtomicLong persisted = segment.persisted;
+            for (VoucherOrder order : batchOrders) {
+                voucherOrderBatchWriter.submit(order, persisted::incrementAndGet, () -> {
+                    appendFailed(order);
+                    persisted.incrementAndGet();
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            batchOrders.clear();
+            batchResults.clear();
+        }
+    }
+
+    /**
+     * 追加写入当前段并刷盘，当前段写满了（或者已经删除了）先换一段
+     * @return 返回写入的段
+     */
+    private Segment appendWal(List<VoucherOrder> orders) throws IOException {
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.appended >= walSegmentRecords) {
+            Path path = walBase.resolveSibling(walBase.getFileName() + "." + nextSegment++);
+            segment = new Segment(path, FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+            segments.addLast(segment);
+        }
+        walBuffer.clear();
+        for (VoucherOrder order : orders) {
+            walBuffer.putLong(order.getId());
+            walBuffer.putLong(order.getUserId());
+            walBuffer.putLong(order.getVoucherId());
+        }
+        walBuffer.flip();
+        while (walBuffer.hasRemaining()) {
+            segment.channel.write(walBuffer);
+        }
+        segment.channel.force(false);
+        segment.appended += orders.size();
+        return segment;
+    }
+
+    /**
+     * 删除订单都处理完了的段（包括正在写的段，下一批会新开一段）
+     */
+    private void releasePersistedSegments() {
+        Iterator<Segment> iterator = segments.iterator();
+        while (iterator.hasNext()) {
+            Segment segment = iterator.next();
+            if (segment.persisted.get() < segment.appended) {
+                continue;
+            }
+            try {
+                segment.channel.close();
+                Files.deleteIfExists(segment.path);
+                iterator.remove();
+            } catch (IOException e) {
+                log.error("删除WAL段失败，path={}", segment.path, e);
+            }
+        }
+    }
+
+    /**
+     * 写库彻底失败的订单记进.failed并刷盘，下次启动时回放，这样所在的段可以删除
+     */
+    private synchronized void appendFailed(VoucherOrder order) {
+        ByteBuffer buffer = ByteBuffer.allocate(WAL_RECORD_SIZE);
+        buffer.putLong(order.getId());
+        buffer.putLong(order.getUserId());
+        buffer.putLong(order.getVoucherId());
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                failedWal.write(buffer);
+            }
+            failedWal.force(false);
+            log.error("订单写库失败，已记录到{}，下次启动时重试，orderId={}", failedPath(), order.getId());
+        } catch (IOException e) {
+            log.error("记录写库失败的订单失败，orderId={}，userId={}，voucherId={}",
+                    order.getId(), order.getUserId(), order.getVoucherId(), e);
+        }
+    }
+
+    private Path failedPath() {
+        return walBase.resolveSibling(walBase.getFileName() + ".failed");
+    }
+
+    /**
+     * 上次留下的WAL文件：旧版本的单个文件、所有的段、.failed
+     */
+    private List<Path> walFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (Files.exists(walBase)) {
+            files.add(walBase);
+        }
+        String prefix = walBase.getFileName() + ".";
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(walBase.getParent(),
+                p -> p.getFileName().toString().startsWith(prefix)
+                        && p.getFileName().toString().substring(prefix.length()).matches("\\d+"))) {
+            for (Path path : stream) {
+                files.add(path);
+            }
+        }
+        if (Files.exists(failedPath())) {
+            files.add(failedPath());
+        }
+        return files;
+    }
+
+    /**
+     * 把WAL里的订单交给批量写入器，等全部写完（按订单id幂等，已经写过的不会重复写），然后删除这些文件
+     * 写库失败的订单隔一会再试，直到全部写进去（期间不接收下单，数据库里的库存还不准）
+     */
+    private void replayWal() throws IOException, InterruptedException {
+        List<Path> files = walFiles();
+        List<VoucherOrder> orders = new ArrayList<>();
+        for (Path file : files) {
+            byte[] bytes = Files.readAllBytes(file);
+            //最后一条可能只写了一半，丢掉
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, bytes.length - bytes.length % WAL_RECORD_SIZE);
+            while (buffer.hasRemaining()) {
+                VoucherOrder order = new VoucherOrder();
+                order.setId(buffer.getLong());
+                order.setUserId(buffer.getLong());
+                order.setVoucherId(buffer.getLong());
+                orders.add(order);
+            }
+        }
+        List<VoucherOrder> remaining = orders;
+        while (!remaining.isEmpty()) {
+            Queue<VoucherOrder> failed = new ConcurrentLinkedQueue<>();
+            CountDownLatch latch = new CountDownLatch(remaining.size());
+            for (VoucherOrder order : remaining) {
+                voucherOrderBatchWriter.submit(order, latch::countDown, () -> {
+                    failed.add(order);
+                    latch.countDown();
+                });
+            }
+            while (!latch.await(replayTimeoutSeconds, TimeUnit.SECONDS)) {
+                log.error("WAL回放未完成，剩余{}个订单，暂停下单，请检查数据库", latch.getCount());
+            }
+            remaining = new ArrayList<>(failed);
+            if (!remaining.isEmpty()) {
+                log.error("WAL回放时{}个订单写库失败，{}秒后重试，暂停下单", remaining.size(), REPLAY_RETRY_SECONDS);
+                TimeUnit.SECONDS.sleep(REPLAY_RETRY_SECONDS);
+            }
+        }
+        for (Path file : files) {
+            Files.delete(file);
+        }
+        if (!orders.isEmpty()) {
+            log.info("WAL回放完成，文件数：{}，订单数：{}", files.size(), orders.size());
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.hmdp.utils;
+
+import java.util.Arrays;
+
+/**
+ * long类型的哈希集合（开放寻址 + 线性探测），不装箱，省内存也快
+ * 不是线程安全的，多线程使用时由调用方加锁或者写时复制
+ */
+public class LongHashSet {
+    //槽位为0表示空，0这个值单独用一个标记保存
+    private static final long EMPTY = 0L;
+
+    private long[] keys;
+    private boolean containsZero;
+    private int size;
+    private int mask;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public LongHashSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize * 2 - 1, 8)) << 1;
+        keys = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * 拷贝一个集合（写时复制用）
+     * @param other 传入被拷贝的集合
+     */
+    public LongHashSet(LongHashSet other) {
+        keys = Arrays.copyOf(other.keys, other.keys.length);
+        containsZero = other.containsZero;
+        size = other.size;
+        mask = other.mask;
+    }
+
+    public boolean contains(long key) {
+        if (key == EMPTY) {
+            return containsZero;
+        }
+        int i = index(key);
+        long k;
+        while ((k = keys[i]) != EMPTY) {
+            if (k == key) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * 添加
+     * @param key 传入值
+     * @return 原来不存在返回true
+     */
+    public boolean add(long key) {
+        if (key == EMPTY) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int i = index(key);
+        long k;
+        while ((k = keys[i]) != EMPTY) {
+            if (k == key) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        //负载超过一半就扩容
+        if (++size * 2 > keys.length) {
+            rehash(keys.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * 删除
+     * @param key 传入值
+     * @return 原来存在返回true
+     */
+    public boolean remove(long key) {
+        if (key == EMPTY) {
+            if (!containsZero) {
+                return false;
+            }
+            containsZero = false;
+            size--;
+            return true;
+        }
+        int i = index(key);
+        long k;
+        while ((k = keys[i]) != EMPTY) {
+            if (k == key) {
+                shiftKeys(i);
+                size--;
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        containsZero = false;
+        size = 0;
+    }
+
+    /**
+     * 删除后把后面同一探测链上的元素往前挪，保证查找不会提前遇到空槽
+     */
+    private void shiftKeys(int pos) {
+        int last;
+        long k;
+        while (true) {
+            last = pos;
+            pos = (pos + 1) & mask;
+            while (true) {
+                if ((k = keys[pos]) == EMPTY) {
+                    keys[last] = EMPTY;
+                    return;
+                }
+                int slot = index(k);
+                //slot不在(last, pos]之间，说明可以挪到last
+                if (last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos)) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = k;
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        long[] old = keys;
+        keys = new long[newCapacity];
+        mask = newCapacity - 1;
+        for (long k : old) {
+            if (k != EMPTY) {
+                int i = index(k);
+                while (keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = k;
+            }
+        }
+    }
+
+    private int index(long key) {
+        //murmur3的混合函数，打散连续的id
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+}
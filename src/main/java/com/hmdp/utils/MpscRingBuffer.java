@@ -0,0 +1,91 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * 多生产者、单消费者的环形缓冲区（Disruptor的思路）
+ * 槽位在创建时全部分配好，生产者CAS领取序号、写槽位、发布；消费者按序号顺序读取，读完释放。
+ * 用法：
+ * 生产者：seq = tryClaim(); 写 get(seq); publish(seq)
+ * 消费者：while (isPublished(next)) { 读 get(next); next++ } release(next - 1)
+ */
+public class MpscRingBuffer<E> {
+
+    private final Object[] entries;
+    //每个槽位最后发布的序号，消费者靠它判断槽位是否写好
+    private final AtomicLongArray published;
+    private final int mask;
+    private final int bufferSize;
+    //生产者领取到的最大序号
+    private final AtomicLong claimSequence = new AtomicLong(-1);
+    //消费者处理完的最大序号
+    private final AtomicLong consumerSequence = new AtomicLong(-1);
+
+    /**
+     * @param bufferSize 传入容量，必须是2的幂
+     * @param factory 传入槽位对象的工厂，创建时一次性分配
+     */
+    public MpscRingBuffer(int bufferSize, Supplier<E> factory) {
+        if (Integer.bitCount(bufferSize) != 1) {
+            throw new IllegalArgumentException("bufferSize必须是2的幂：" + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        this.mask = bufferSize - 1;
+        this.entries = new Object[bufferSize];
+        this.published = new AtomicLongArray(bufferSize);
+        for (int i = 0; i < bufferSize; i++) {
+            entries[i] = factory.get();
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * 领取一个序号
+     * @return 序号，缓冲区满了返回-1
+     */
+    public long tryClaim() {
+        while (true) {
+            long current = claimSequence.get();
+            long next = current + 1;
+            //再往前写就会覆盖消费者还没处理的槽位
+            if (next - bufferSize > consumerSequence.get()) {
+                return -1;
+            }
+            if (claimSequence.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(long sequence) {
+        return (E) entries[(int) sequence & mask];
+    }
+
+    /**
+     * 发布，之后消费者才能看到这个槽位
+     */
+    public void publish(long sequence) {
+        published.lazySet((int) sequence & mask, sequence);
+    }
+
+    public boolean isPublished(long sequence) {
+        return published.get((int) sequence & mask) == sequence;
+    }
+
+    /**
+     * 消费者处理完到sequence为止的槽位，生产者可以复用
+     */
+    public void release(long sequence) {
+        consumerSequence.lazySet(sequence);
+    }
+
+    /**
+     * 已经领取、还没被消费者处理完的数量
+     */
+    public long backlog() {
+        return claimSequence.get() - consumerSequence.get();
+    }
+}
@@ -0,0 +1,167 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ORDER_TIMEOUT_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_TIMEOUT_PROCESSING_KEY;
+
+/**
+ * 未支付订单的超时取消（Redis ZSET延迟队列，score是超时时间）
+ * 订单写库成功后入队；定时任务用lua脚本批量领取到期的订单，移到处理中队列（带租约，节点宕机后会被重新领取），
+ * 在一个数据库事务里取消订单并还库存，再把库存还给Redis，最后从处理中队列删除
+ */
+@Slf4j
+@Component
+public class OrderTimeoutQueue {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillStockReturner seckillStockReturner;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 多久不支付就取消（分钟）
+     */
+    @Value("${hmdp.order.timeout.pay-minutes:15}")
+    private long payTimeoutMinutes;
+    /**
+     * 每批领取多少条
+     */
+    @Value("${hmdp.order.timeout.batch-size:500}")
+    private int batchSize;
+    /**
+     * 领取后多久没处理完就放回队列（秒）
+     */
+    @Value("${hmdp.order.timeout.lease-seconds:60}")
+    private long leaseSeconds;
+    /**
+     * 每次定时任务最多处理多少批，处理不完的下次继续
+     */
+    @Value("${hmdp.order.timeout.max-batches:100}")
+    private int maxBatches;
+
+    //批量领取到期订单
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("claim_timeout.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    private Counter cancelledCounter;
+
+    @PostConstruct
+    private void init() {
+        cancelledCounter = Counter.builder("order.timeout.cancelled")
+                .description("超时取消的订单数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 订单写库成功后入队，一条ZADD
+     * @param orderIds 传入订单id
+     */
+    public void addAll(Collection<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        double deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(payTimeoutMinutes);
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(orderIds.size() * 2);
+        for (Long orderId : orderIds) {
+            tuples.add(new DefaultTypedTuple<>(orderId.toString(), deadline));
+        }
+        stringRedisTemplate.opsForZSet().add(ORDER_TIMEOUT_KEY, tuples);
+    }
+
+    /**
+     * 订单支付后调用，不用再等超时
+     * @param orderId 传入订单id
+     */
+    public void remove(Long orderId) {
+        stringRedisTemplate.opsForZSet().remove(ORDER_TIMEOUT_KEY, orderId.toString());
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.order.timeout.scan-ms:1000}")
+    public void process() {
+        for (int i = 0; i < maxBatches; i++) {
+            List<String> ids;
+            try {
+                ids = claim();
+            } catch (Exception e) {
+                log.error("领取超时订单失败", e);
+                return;
+            }
+            if (ids.isEmpty()) {
+                return;
+            }
+            try {
+                cancel(ids);
+            } catch (Exception e) {
+                //留在处理中队列里，租约到期后重新领取
+                log.error("取消超时订单失败，size={}", ids.size(), e);
+                return;
+            }
+            if (ids.size() < batchSize) {
+                return;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> claim() {
+        long now = System.currentTimeMillis();
+        List<String> ids = stringRedisTemplate.execute(
+                CLAIM_SCRIPT,
+                Arrays.asList(ORDER_TIMEOUT_KEY, ORDER_TIMEOUT_PROCESSING_KEY),
+                String.valueOf(now), String.valueOf(batchSize), String.valueOf(now + TimeUnit.SECONDS.toMillis(leaseSeconds))
+        );
+        return ids == null ? new ArrayList<>() : ids;
+    }
+
+    private void cancel(List<String> ids) {
+        List<Long> orderIds = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            orderIds.add(Long.valueOf(id));
+        }
+        //1、数据库：取消订单、还库存（一个事务），已经支付的订单不会被取消
+        List<VoucherOrder> cancelled = voucherOrderService.cancelUnpaidOrders(orderIds);
+        //2、Redis：只还这次状态真正改掉的订单。租约到期被重新领取时，之前取消过的订单不会再还一次，
+        //   否则用户重新下单后会被当成旧订单再还一份库存。数据库提交后、还Redis之前宕机的话这一份不会补还，
+        //   只会少卖不会超卖
+        seckillStockReturner.returnStock(cancelled);
+        //3、处理完成
+        stringRedisTemplate.opsForZSet().remove(ORDER_TIMEOUT_PROCESSING_KEY, ids.toArray());
+        cancelledCounter.increment(cancelled.size());
+        if (!cancelled.isEmpty()) {
+            log.info("取消超时未支付订单{}个", cancelled.size());
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 布隆过滤器，位图存在Redis里（bit偏移和SETBIT一致），本地保留一份，判断时不访问网络
+ * 说不存在就一定不存在；说存在有一定误判率。只能添加不能删除，删掉的数据越来越多误判率会变高，需要定期重建
+ */
+public class RedisBloomFilter {
+
+    //Redis位图最大 2^32 位
+    private static final long MAX_BITS = 1L << 32;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String key;
+    //位图的参数（位数:哈希函数个数）单独存一个key，加载时和本地配置对不上就不用
+    private final String metaKey;
+    //位数（64的倍数）和哈希函数个数
+    private final long numBits;
+    private final int numHashes;
+    //本地的位图，重建或者重新加载时整体替换
+    private volatile AtomicLongArray bits;
+
+    /**
+     * @param stringRedisTemplate 传入redis
+     * @param key 传入位图在redis里的key
+     * @param expectedInsertions 传入预计元素个数
+     * @param fpp 传入期望的误判率
+     */
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String key, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = key;
+        this.metaKey = key + ":meta";
+        long n = Math.max(1, expectedInsertions);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        m = Math.min(MAX_BITS, Math.max(64, (m + 63) / 64 * 64));
+        this.numBits = m;
+        this.numHashes = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+        this.bits = new AtomicLongArray((int) (m / 64));
+    }
+
+    /**
+     * 判断元素是否可能存在，只查本地
+     */
+    public boolean mightContain(Object value) {
+        AtomicLongArray current = bits;
+        for (long offset : offsets(value)) {
+            if ((current.get((int) (offset >>> 6)) & (1L << (offset & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 添加到本地位图
+     */
+    public void putLocal(Object value) {
+        AtomicLongArray current = bits;
+        for (long offset : offsets(value)) {
+            setBit(current, offset);
+        }
+    }
+
+    /**
+     * 添加到本地位图和redis位图（一次管道提交）
+     */
+    public void put(Object value) {
+        long[] offsets = offsets(value);
+        AtomicLongArray current = bits;
+        for (long offset : offsets) {
+            setBit(current, offset);
+        }
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.setBit(rawKey, offset, true);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 从redis加载位图，替换本地的
+     * @return redis里没有这个位图，或者位图是按别的位数/哈希函数个数建的（改了配置），返回false，需要重建
+     */
+    public boolean load() {
+        //1、参数不一致时偏移量算法不同，截断或者补零加载都会把存在的元素判成不存在
+        if (!meta().equals(stringRedisTemplate.opsForValue().get(metaKey))) {
+            return false;
+        }
+        byte[] raw = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.get(key.getBytes(StandardCharsets.UTF_8)));
+        if (raw == null || raw.length != numBits / 8) {
+            return false;
+        }
+        //2、转成本地位图
+        AtomicLongArray loaded = new AtomicLongArray((int) (numBits / 64));
+        for (int i = 0; i < raw.length; i++) {
+            int b = raw[i] & 0xFF;
+            if (b == 0) {
+                continue;
+            }
+            for (int j = 0; j < 8; j++) {
+                //redis的位图每个字节从高位开始
+                if ((b & (0x80 >>> j)) != 0) {
+                    setBit(loaded, (long) i * 8 + j);
+                }
+            }
+        }
+        bits = loaded;
+        return true;
+    }
+
+    /**
+     * 新建一个空的本地位图，重建时用：往里面添加完以后调用publish写到redis
+     */
+    public AtomicLongArray newBits() {
+        return new AtomicLongArray((int) (numBits / 64));
+    }
+
+    public void putTo(AtomicLongArray target, Object value) {
+        for (long offset : offsets(value)) {
+            setBit(target, offset);
+        }
+    }
+
+    /**
+     * 把重建好的位图写到临时key，再RENAME覆盖，读的节点不会看到一半的位图；本地也换成新的。
+     * 最后写参数，写参数之前挂掉的话下次加载对不上，会再重建一次
+     */
+    public void publish(AtomicLongArray rebuilt) {
+        byte[] raw = new byte[(int) (numBits / 8)];
+        for (int w = 0; w < rebuilt.length(); w++) {
+            long word = rebuilt.get(w);
+            if (word == 0) {
+                continue;
+            }
+            for (int bit = 0; bit < 64; bit++) {
+                if ((word & (1L << bit)) != 0) {
+                    long offset = (long) w * 64 + bit;
+                    raw[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+                }
+            }
+        }
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] tmpKey = (key + ":rebuild").getBytes(StandardCharsets.UTF_8);
+        byte[] rawMetaKey = metaKey.getBytes(StandardCharsets.UTF_8);
+        byte[] rawMeta = meta().getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.set(tmpKey, raw);
+            connection.rename(tmpKey, rawKey);
+            connection.set(rawMetaKey, rawMeta);
+            return null;
+        });
+        bits = rebuilt;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    private String meta() {
+        return numBits + ":" + numHashes;
+    }
+
+    private static void setBit(AtomicLongArray target, long offset) {
+        int index = (int) (offset >>> 6);
+        long mask = 1L << (offset & 63);
+        long word;
+        do {
+            word = target.get(index);
+            if ((word & mask) != 0) {
+                return;
+            }
+        } while (!target.compareAndSet(index, word, word | mask));
+    }
+
+    /**
+     * 双重哈希：第i个位置 = h1 + i * h2
+     */
+    private long[] offsets(Object value) {
+        long[] hash = MurmurHash.hash128(value.toString().getBytes(StandardCharsets.UTF_8));
+        long[] offsets = new long[numHashes];
+        long combined = hash[0];
+        for (int i = 0; i < numHashes; i++) {
+            offsets[i] = (combined & Long.MAX_VALUE) % numBits;
+            combined += hash[1];
+        }
+        return offsets;
+    }
+}
@@ -10,11 +10,32 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_SHOP_HASH_KEY = "cache:shop:hash:";
 
+    public static final String CACHE_VERSION_KEY = "cache:version:";
+    public static final String CACHE_SOFT_EXPIRE_KEY = "cache:soft:";
+    public static final String CACHE_REPLICA_SUFFIX = ":r";
+    public static final Long CACHE_VERSION_TTL = 24L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+    public static final String BLOOM_SHOP_CHANNEL = "bloom:shop:changed";
+
+    public static final String LOCK_KEY = "lock:";
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_STREAM_GROUP = "g1";
+    public static final String SECKILL_STREAM_DLQ_KEY = "stream.orders.dlq";
+    public static final String SECKILL_STOCK_CHANNEL = "seckill:stock:changed";
+    public static final String SECKILL_STATUS_KEY = "seckill:status:";
+    public static final Long SECKILL_STATUS_TTL = 10L;
+    public static final String ORDER_TIMEOUT_KEY = "order:timeout";
+    public static final String ORDER_TIMEOUT_PROCESSING_KEY = "order:timeout:processing";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
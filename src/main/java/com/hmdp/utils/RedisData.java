@@ -8,4 +8,8 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    /**
+     * 上次重建花的时间（毫秒），提前刷新时用
+     */
+    private Long delta;
 }
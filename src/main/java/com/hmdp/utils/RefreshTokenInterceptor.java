@@ -53,5 +53,7 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
     @Override
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
         HandlerInterceptor.super.afterCompletion(request, response, handler, ex);
+        //没有写响应体（比如抛了异常）时，过期标记不能留给这个线程的下一个请求
+        CacheStaleHolder.remove();
     }
 }
@@ -0,0 +1,128 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STATUS_TTL;
+
+/**
+ * 秒杀订单状态
+ * 下单成功时lua脚本写入QUEUED，写库成功后改成PERSISTED，写库被拒绝（库存不足、重复下单）改成FAILED，
+ * 状态在Redis里只保留一小段时间，过期后查数据库。
+ * 秒杀刚结束时客户端会频繁轮询，最终状态（PERSISTED/FAILED）不会再变，缓存在本地。
+ * 状态按 用户id:订单id 存，只能查到自己的订单，别人的订单id查出来是NOT_FOUND
+ */
+@Component
+public class SeckillOrderStatus {
+
+    public static final String QUEUED = "QUEUED";
+    public static final String PERSISTED = "PERSISTED";
+    public static final String FAILED = "FAILED";
+    public static final String NOT_FOUND = "NOT_FOUND";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //最终状态，不会再变
+    private final Cache<String, String> finalStatus = Caffeine.newBuilder()
+            .maximumSize(100_000)
+            .expireAfterWrite(SECKILL_STATUS_TTL, TimeUnit.MINUTES)
+            .build();
+    //查不到的订单短暂缓存，防止轮询不存在的订单打到数据库
+    private final Cache<String, String> notFound = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterWrite(2, TimeUnit.SECONDS)
+            .build();
+
+    /**
+     * 订单状态在Redis里的key，lua脚本下单时也用这个key
+     * @param userId 传入下单用户id
+     * @param orderId 传入订单id
+     * @return seckill:status:用户id:订单id
+     */
+    public static String statusKey(long userId, long orderId) {
+        return SECKILL_STATUS_KEY + userId + ":" + orderId;
+    }
+
+    /**
+     * 记录排队中（分片库存下单时用，不分片时lua脚本里已经写了）
+     */
+    public void markQueued(long userId, long orderId) {
+        stringRedisTemplate.opsForValue().set(statusKey(userId, orderId), QUEUED, SECKILL_STATUS_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 批量记录排队中（本地模式一批订单刷盘后用）
+     */
+    public void markQueued(Collection<VoucherOrder> orders) {
+        setAll(orders, QUEUED);
+    }
+
+    /**
+     * 批量记录写库成功，一次管道提交
+     */
+    public void markPersisted(Collection<VoucherOrder> orders) {
+        setAll(orders, PERSISTED);
+    }
+
+    private void setAll(Collection<VoucherOrder> orders, String status) {
+        long ttl = TimeUnit.MINUTES.toSeconds(SECKILL_STATUS_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                conn.setEx(statusKey(order.getUserId(), order.getId()), ttl, status);
+            }
+            return null;
+        });
+    }
+
+    public void markFailed(VoucherOrder order) {
+        stringRedisTemplate.opsForValue().set(statusKey(order.getUserId(), order.getId()), FAILED, SECKILL_STATUS_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 查询订单状态：本地缓存 -> Redis -> 数据库，都按用户id和订单id一起查
+     * @param userId 传入当前登录用户id
+     * @param orderId 传入订单id
+     * @param dbFallback 传入数据库查询，这个用户的这个订单存在返回true
+     * @return 订单状态
+     */
+    public String query(Long userId, Long orderId, Function<Long, Boolean> dbFallback) {
+        String key = statusKey(userId, orderId);
+        //1、本地缓存
+        String status = finalStatus.getIfPresent(key);
+        if (status != null) {
+            return status;
+        }
+        if (notFound.getIfPresent(key) != null) {
+            return NOT_FOUND;
+        }
+        //2、Redis
+        status = stringRedisTemplate.opsForValue().get(key);
+        if (StrUtil.isNotBlank(status)) {
+            if (!QUEUED.equals(status)) {
+                finalStatus.put(key, status);
+            }
+            return status;
+        }
+        //3、Redis里过期了，查数据库
+        if (Boolean.TRUE.equals(dbFallback.apply(orderId))) {
+            finalStatus.put(key, PERSISTED);
+            return PERSISTED;
+        }
+        notFound.put(key, NOT_FOUND);
+        return NOT_FOUND;
+    }
+}
@@ -0,0 +1,101 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_CHANNEL;
+
+/**
+ * 本地售罄标记
+ * 优惠券卖完以后，本节点直接在内存里拒绝请求，不再访问Redis；
+ * 补库存或者新增秒杀券时，通过Redis发布订阅通知所有节点清掉标记。
+ * 本节点每收到一次库存变更版本号加一：下单前记下版本号，脚本返回库存不足后版本号变了（期间有库存还回来），
+ * 就不标记售罄，否则晚到的标记会盖掉清除，Redis里有库存也一直被拒绝
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutMarker {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //写时复制：读不加锁，写（很少）时复制一份再替换
+    private volatile LongHashSet soldOut = new LongHashSet();
+    //本节点收到的库存变更次数（所有券一起算，变更很少，偶尔多访问一次Redis没关系）
+    private final AtomicLong stockVersion = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            try {
+                clearLocal(Long.parseLong(body));
+            } catch (NumberFormatException e) {
+                log.warn("无效的库存变更消息：{}", body);
+            }
+        }, new ChannelTopic(SECKILL_STOCK_CHANNEL));
+    }
+
+    /**
+     * 判断本节点是否已经标记售罄
+     * @param voucherId 传入优惠券id
+     */
+    public boolean isSoldOut(long voucherId) {
+        return soldOut.contains(voucherId);
+    }
+
+    /**
+     * 当前的库存变更版本号，执行下单脚本之前取，库存不足时传给markSoldOut
+     */
+    public long stockVersion() {
+        return stockVersion.get();
+    }
+
+    /**
+     * 标记售罄（只影响本节点，其他节点自己发现库存不足时也会标记）
+     * @param voucherId 传入优惠券id
+     * @param seenVersion 传入执行下单脚本之前的库存变更版本号，之后库存变过就不标记
+     */
+    public synchronized void markSoldOut(long voucherId, long seenVersion) {
+        if (stockVersion.get() != seenVersion || soldOut.contains(voucherId)) {
+            return;
+        }
+        LongHashSet copy = new LongHashSet(soldOut);
+        copy.add(voucherId);
+        soldOut = copy;
+    }
+
+    /**
+     * 库存有变化（补库存、新增秒杀券），通知所有节点清掉售罄标记
+     * @param voucherId 传入优惠券id
+     */
+    public void publishStockChanged(long voucherId) {
+        clearLocal(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_STOCK_CHANNEL, String.valueOf(voucherId));
+    }
+
+    /**
+     * 只清掉本节点的标记（优惠券卸载时用）
+     * @param voucherId 传入优惠券id
+     */
+    public synchronized void clearLocal(long voucherId) {
+        //先加版本号，正在执行的下单请求不会再标记
+        stockVersion.incrementAndGet();
+        if (!soldOut.contains(voucherId)) {
+            return;
+        }
+        LongHashSet copy = new LongHashSet(soldOut);
+        copy.remove(voucherId);
+        soldOut = copy;
+    }
+}
@@ -0,0 +1,288 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * Redis库存和数据库库存的对账
+ * 1、回放消息队列：已经确认（不在pending-list里）的消息，按订单id分块去数据库核对，缺的按订单id幂等补写，核对完删除消息；
+ *    被数据库拒绝的、移到死信队列的消息消费者确认前已经删掉了，留下来的缺订单才是真的丢了；
+ *    长时间没人确认的消息（消费者宕机了）也在这里补写并确认
+ * 2、库存核对：Redis的 剩余库存+下单人数 应该等于 数据库的 剩余库存+有效订单数，不相等时记录偏差指标
+ * 全程分块处理，不会把订单一次性读进内存；本地模式不用Redis扣库存，不需要对账
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.mode", havingValue = "redis", matchIfMissing = true)
+public class SeckillStockReconciler {
+
+    //订单状态：已取消
+    private static final int ORDER_STATUS_CANCELLED = 4;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillStockReturner seckillStockReturner;
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 每块处理多少条消息
+     */
+    @Value("${hmdp.seckill.reconcile.chunk-size:500}")
+    private int chunkSize;
+    /**
+     * pending消息超过这个时间没确认，认为消费者已经宕机，由对账任务接手
+     */
+    @Value("${hmdp.seckill.reconcile.pending-idle-ms:300000}")
+    private long pendingIdleMs;
+
+    private Counter replayedCounter;
+    private Counter repairedCounter;
+    //voucherId -> 偏差，注册成带标签的Gauge（Gauge只持有弱引用，这里保存强引用）
+    private final Map<Long, AtomicLong> drifts = new ConcurrentHashMap<>();
+    //voucherId -> Redis里已下单、数据库里还没有的订单数（异步写库的积压）
+    private final Map<Long, AtomicLong> backlogs = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        replayedCounter = Counter.builder("seckill.reconcile.replayed")
+                .description("对账时核对过的消息数")
+                .register(meterRegistry);
+        repairedCounter = Counter.builder("seckill.reconcile.repaired")
+                .description("对账时补写到数据库的订单数")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval-ms:60000}")
+    public void reconcile() {
+        //多个节点只让一个执行
+        String lockKey = "lock:seckill:reconcile";
+        Boolean isLock = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, "1", 10, TimeUnit.MINUTES);
+        if (!BooleanUtil.isTrue(isLock)) {
+            return;
+        }
+        try {
+            takeOverIdlePending();
+            replayAcknowledged();
+            checkStock();
+        } catch (Exception e) {
+            log.error("秒杀库存对账失败", e);
+        } finally {
+            stringRedisTemplate.delete(lockKey);
+        }
+    }
+
+    /**
+     * 接手长时间没确认的pending消息：幂等写库后确认
+     */
+    private void takeOverIdlePending() {
+        PendingMessages pending = stringRedisTemplate.opsForStream()
+                .pending(SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP, Range.unbounded(), chunkSize);
+        for (PendingMessage message : pending) {
+            if (message.getElapsedTimeSinceLastDelivery().compareTo(Duration.ofMillis(pendingIdleMs)) < 0) {
+                continue;
+            }
+            String id = message.getIdAsString();
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                    .range(SECKILL_STREAM_KEY, Range.closed(id, id));
+            if (records != null && !records.isEmpty()) {
+                VoucherOrder order = toOrder(records.get(0));
+                //数据库拒绝了（重复下单、库存不足），和消费者一样把Redis里扣的还回去，并删掉消息，回放时不再处理
+                if (!voucherOrderService.createVoucherOrder(order)) {
+                    seckillStockReturner.returnStock(Collections.singletonList(order));
+                    stringRedisTemplate.opsForStream().delete(SECKILL_STREAM_KEY, message.getId());
+                }
+                repairedCounter.increment();
+            }
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP, message.getId());
+            log.warn("接手超时未确认的订单消息，recordId={}，consumer={}", id, message.getConsumerName());
+        }
+    }
+
+    /**
+     * 回放已经确认过的消息，按块核对数据库，缺的补写，然后删除消息
+     */
+    private void replayAcknowledged() {
+        //1、只处理已经投递并且确认过的消息：小于最早的pending消息，且不超过消费者组最后投递的位置
+        String upper = lastDeliveredId();
+        if (upper == null) {
+            return;
+        }
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(SECKILL_STREAM_KEY, SECKILL_STREAM_GROUP);
+        RecordId minPending = summary != null && summary.getTotalPendingMessages() > 0 ? summary.minRecordId() : null;
+        if (minPending != null) {
+            upper = minPending.getValue();
+        }
+        while (true) {
+            //2、核对完的消息会被删掉，所以每次都从头读一块
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                    SECKILL_STREAM_KEY, Range.closed("-", upper), RedisZSetCommands.Limit.limit().count(chunkSize));
+            if (records == null || records.isEmpty()) {
+                return;
+            }
+            List<VoucherOrder> orders = new ArrayList<>(records.size());
+            List<RecordId> ids = new ArrayList<>(records.size());
+            for (MapRecord<String, Object, Object> record : records) {
+                //最早的pending消息本身不能动
+                if (minPending != null && record.getId().equals(minPending)) {
+                    break;
+                }
+                orders.add(toOrder(record));
+                ids.add(record.getId());
+            }
+            if (ids.isEmpty()) {
+                return;
+            }
+            //3、一次查出这一块里已经写入数据库的订单
+            Set<Long> orderIds = new HashSet<>();
+            for (VoucherOrder order : orders) {
+                orderIds.add(order.getId());
+            }
+            Set<Long> persisted = new HashSet<>();
+            for (VoucherOrder order : voucherOrderService.listByIds(orderIds)) {
+                persisted.add(order.getId());
+            }
+            //4、缺的按订单id幂等补写，数据库拒绝了就把Redis里扣的库存还回去
+            List<VoucherOrder> rejected = new ArrayList<>();
+            for (VoucherOrder order : orders) {
+                if (!persisted.contains(order.getId())) {
+                    if (voucherOrderService.createVoucherOrder(order)) {
+                        log.warn("补写丢失的订单，orderId={}，voucherId={}", order.getId(), order.getVoucherId());
+                    } else {
+                        rejected.add(order);
+                        log.warn("丢失的订单补写被拒绝，还回库存，orderId={}，voucherId={}", order.getId(), order.getVoucherId());
+                    }
+                    repairedCounter.increment();
+                }
+            }
+            seckillStockReturner.returnStock(rejected);
+            //5、核对完删除消息，消息队列不会无限增长
+            stringRedisTemplate.opsForStream().delete(SECKILL_STREAM_KEY, ids.toArray(new RecordId[0]));
+            replayedCounter.increment(ids.size());
+            if (ids.size() < records.size()) {
+                return;
+            }
+        }
+    }
+
+    private String lastDeliveredId() {
+        if (!BooleanUtil.isTrue(stringRedisTemplate.hasKey(SECKILL_STREAM_KEY))) {
+            return null;
+        }
+        return stringRedisTemplate.opsForStream().groups(SECKILL_STREAM_KEY).stream()
+                .filter(group -> SECKILL_STREAM_GROUP.equals(group.groupName()))
+                .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * 核对每张在Redis里的秒杀券的库存
+     */
+    private void checkStock() {
+        for (Long voucherId : scanLoadedVouchers()) {
+            //1、Redis：剩余库存 + 下单人数
+            Integer redisStock = seckillStockShards.totalStock(voucherId);
+            if (redisStock == null) {
+                continue;
+            }
+            long redisOrders = 0;
+            for (String orderKey : seckillStockShards.orderKeys(voucherId)) {
+                Long size = stringRedisTemplate.opsForSet().size(orderKey);
+                redisOrders += size == null ? 0 : size;
+            }
+            //2、数据库：剩余库存 + 有效订单数（count查询，不读订单数据）
+            SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+            if (voucher == null) {
+                continue;
+            }
+            int dbOrders = voucherOrderService.query()
+                    .eq("voucher_id", voucherId)
+                    .ne("status", ORDER_STATUS_CANCELLED)
+                    .count();
+            //3、两边的和都等于初始库存；还没写库的订单两边的和都不受影响
+            long drift = (redisStock + redisOrders) - (voucher.getStock() + dbOrders);
+            gauge(drifts, "seckill.reconcile.drift", voucherId).set(drift);
+            gauge(backlogs, "seckill.reconcile.backlog", voucherId).set(redisOrders - dbOrders);
+            if (drift != 0) {
+                log.warn("秒杀库存不一致，voucherId={}，redisStock={}，redisOrders={}，dbStock={}，dbOrders={}",
+                        voucherId, redisStock, redisOrders, voucher.getStock(), dbOrders);
+            }
+        }
+    }
+
+    private AtomicLong gauge(Map<Long, AtomicLong> values, String name, Long voucherId) {
+        return values.computeIfAbsent(voucherId,
+                id -> meterRegistry.gauge(name, Tags.of("voucherId", id.toString()), new AtomicLong(), AtomicLong::get));
+    }
+
+    /**
+     * 用SCAN找出Redis里加载过的秒杀券（每张券都有分片数的key）
+     */
+    private List<Long> scanLoadedVouchers() {
+        return stringRedisTemplate.execute((RedisCallback<List<Long>>) connection -> {
+            List<Long> ids = new ArrayList<>();
+            ScanOptions options = ScanOptions.scanOptions().match(SECKILL_SHARDS_KEY + "*").count(chunkSize).build();
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                while (cursor.hasNext()) {
+                    String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                    ids.add(Long.parseLong(key.substring(SECKILL_SHARDS_KEY.length())));
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            return ids;
+        });
+    }
+
+    private VoucherOrder toOrder(MapRecord<String, Object, Object> record) {
+        return BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+    }
+}
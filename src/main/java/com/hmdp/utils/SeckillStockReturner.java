@@ -0,0 +1,80 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 把订单占用的秒杀库存还给Redis（超时取消、写库被拒绝时用）
+ * 按分片分组，每组一次lua脚本删除下单记录并还库存，用户还在下单记录里才还，重复执行不会多还；
+ * 本地模式还给本地流水线。最后通知所有节点清掉售罄标记
+ */
+@Component
+public class SeckillStockReturner {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillSoldOutMarker seckillSoldOutMarker;
+    //本地模式（hmdp.seckill.mode=local）才有，用到时再取（它依赖的批量写入器又依赖这里）
+    @Resource
+    private ObjectProvider<LocalSeckillPipeline> localSeckillPipeline;
+
+    //把库存还给Redis
+    private static final DefaultRedisScript<Long> RETURN_STOCK_SCRIPT;
+    static {
+        RETURN_STOCK_SCRIPT = new DefaultRedisScript<>();
+        RETURN_STOCK_SCRIPT.setLocation(new ClassPathResource("return_stock.lua"));
+        RETURN_STOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 还库存，可以重复调用
+     * @param orders 传入订单（用到优惠券id和用户id）
+     */
+    public void returnStock(Collection<VoucherOrder> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        LocalSeckillPipeline pipeline = localSeckillPipeline.getIfAvailable();
+        //1、按分片分组：库存key、下单记录key -> 用户id
+        Map<List<String>, List<String>> groups = new HashMap<>();
+        Set<Long> vouchers = new HashSet<>();
+        for (VoucherOrder order : orders) {
+            Long voucherId = order.getVoucherId();
+            vouchers.add(voucherId);
+            if (pipeline != null) {
+                pipeline.returnStock(voucherId, order.getUserId());
+                continue;
+            }
+            int shards = seckillStockShards.shardCount(voucherId);
+            int shard = seckillStockShards.homeShard(order.getUserId(), shards);
+            List<String> keys = Arrays.asList(
+                    seckillStockShards.stockKey(voucherId, shards, shard),
+                    seckillStockShards.orderKey(voucherId, shards, shard));
+            groups.computeIfAbsent(keys, k -> new ArrayList<>()).add(order.getUserId().toString());
+        }
+        //2、每组一次lua脚本
+        groups.forEach((keys, userIds) ->
+                stringRedisTemplate.execute(RETURN_STOCK_SCRIPT, keys, userIds.toArray()));
+        //3、库存回来了，通知所有节点清掉售罄标记
+        for (Long voucherId : vouchers) {
+            seckillSoldOutMarker.publishStockChanged(voucherId);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存分片
+ * 热点券的库存拆到N个key上，每个分片的库存key和下单记录key用同一个hash tag，落在同一个slot，
+ * 这样不同分片可以分布到集群的不同节点上。分片数为1时沿用原来的 seckill:stock:{id} 和 seckill:order:{id}
+ */
+@Component
+public class SeckillStockShards {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //优惠券的分片数，创建以后不会变，缓存在本地
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+
+    /**
+     * 初始化库存，按分片平均拆分，除不尽的部分分给前面的分片
+     * @param voucherId 传入优惠券id
+     * @param stock 传入总库存
+     * @param shards 传入分片数，小于等于1表示不分片
+     */
+    public void initStock(Long voucherId, int stock, Integer shards) {
+        int n = shards == null || shards < 1 ? 1 : shards;
+        if (n == 1) {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+        } else {
+            Map<String, String> values = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                values.put(stockKey(voucherId, n, i), String.valueOf(stock / n + (i < stock % n ? 1 : 0)));
+            }
+            stringRedisTemplate.opsForValue().multiSet(values);
+        }
+        stringRedisTemplate.opsForValue().set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(n));
+        shardCounts.put(voucherId, n);
+    }
+
+    /**
+     * 库存还没加载过时才加载（预热用），已经加载过的不能覆盖，否则会把卖掉的库存加回来
+     * 用分片数的key当作加载标记，预热的券不分片
+     * @param voucherId 传入优惠券id
+     * @param stock 传入库存
+     * @return 这次加载了返回true
+     */
+    public boolean loadStockIfAbsent(Long voucherId, int stock) {
+        Boolean first = stringRedisTemplate.opsForValue().setIfAbsent(SECKILL_SHARDS_KEY + voucherId, "1");
+        if (!BooleanUtil.isTrue(first)) {
+            return false;
+        }
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+        shardCounts.put(voucherId, 1);
+        return true;
+    }
+
+    /**
+     * 查询优惠券的分片数
+     * @param voucherId 传入优惠券id
+     * @return 分片数，没有记录时返回1
+     */
+    public int shardCount(Long voucherId) {
+        Integer n = shardCounts.get(voucherId);
+        if (n != null) {
+            return n;
+        }
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        n = StrUtil.isBlank(value) ? 1 : Integer.parseInt(value);
+        shardCounts.put(voucherId, n);
+        return n;
+    }
+
+    /**
+     * 用户所属的分片，同一个用户永远落在同一个分片，一人一单就在这个分片里判断
+     */
+    public int homeShard(Long userId, int shards) {
+        return Math.floorMod(Long.hashCode(userId * 0x9E3779B97F4A7C15L), shards);
+    }
+
+    public String stockKey(Long voucherId, int shards, int shard) {
+        return shards <= 1 ? SECKILL_STOCK_KEY + voucherId : SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public String orderKey(Long voucherId, int shards, int shard) {
+        return shards <= 1 ? SECKILL_ORDER_KEY + voucherId : SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 所有分片的库存key
+     */
+    public List<String> stockKeys(Long voucherId) {
+        int n = shardCount(voucherId);
+        List<String> keys = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            keys.add(stockKey(voucherId, n, i));
+        }
+        return keys;
+    }
+
+    /**
+     * 所有分片的下单记录key
+     */
+    public List<String> orderKeys(Long voucherId) {
+        int n = shardCount(voucherId);
+        List<String> keys = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            keys.add(orderKey(voucherId, n, i));
+        }
+        return keys;
+    }
+
+    /**
+     * 总库存，所有分片加起来，给后台查询用
+     * @param voucherId 传入优惠券id
+     * @return 总库存，Redis里没有时返回null
+     */
+    public Integer totalStock(Long voucherId) {
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(stockKeys(voucherId));
+        if (values == null) {
+            return null;
+        }
+        Integer total = null;
+        for (String value : values) {
+            if (StrUtil.isNotBlank(value)) {
+                total = (total == null ? 0 : total) + Integer.parseInt(value);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 忘掉本地缓存的分片数（优惠券卸载时用）
+     */
+    public void evict(Long voucherId) {
+        shardCounts.remove(voucherId);
+    }
+}
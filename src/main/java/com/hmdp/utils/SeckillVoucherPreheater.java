@@ -0,0 +1,61 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * 秒杀券预热
+ * 定时扫描快要开始的秒杀券（开始前lead-minutes分钟），把库存和时间窗口加载到Redis和本地索引
+ */
+@Slf4j
+@Component
+public class SeckillVoucherPreheater {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillWindowGate seckillWindowGate;
+
+    /**
+     * 提前多少分钟预热
+     */
+    @Value("${hmdp.seckill.preheat.lead-minutes:10}")
+    private long leadMinutes;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat.scan-ms:10000}")
+    public void preheat() {
+        LocalDateTime now = LocalDateTime.now();
+        //1、查询马上开始、还没结束的秒杀券
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .le("begin_time", now.plusMinutes(leadMinutes))
+                .gt("end_time", now)
+                .list();
+        for (SeckillVoucher voucher : vouchers) {
+            Long voucherId = voucher.getVoucherId();
+            //2、本节点已经加载过的跳过
+            if (seckillWindowGate.isLoaded(voucherId)) {
+                continue;
+            }
+            try {
+                //3、库存写入Redis（已经有了就不覆盖）
+                if (seckillStockShards.loadStockIfAbsent(voucherId, voucher.getStock())) {
+                    log.info("秒杀券库存预热完成，voucherId={}，stock={}", voucherId, voucher.getStock());
+                }
+                //4、时间窗口写入Redis和本地索引
+                seckillWindowGate.open(voucherId, voucher.getBeginTime(), voucher.getEndTime());
+            } catch (Exception e) {
+                log.error("秒杀券预热失败，voucherId={}", voucherId, e);
+            }
+        }
+    }
+}
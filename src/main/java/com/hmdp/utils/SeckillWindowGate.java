@@ -0,0 +1,174 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀时间窗口的本地索引
+ * 预热时把每张券的开始、结束时间放进内存，下单前直接在内存里判断，不在时间窗口内的请求不做任何IO；
+ * 结束以后用时间轮定时卸载，删掉Redis里的库存和下单记录，Redis内存不会一直涨；
+ * 卸载时记下结束时间，卸载后的请求提示已经结束；其他本地没有的券（还没预热、不存在）一律提示尚未开始，
+ * 判断时不查数据库，随便编的券id也打不到MySQL
+ */
+@Slf4j
+@Component
+public class SeckillWindowGate {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+    @Resource
+    private SeckillSoldOutMarker seckillSoldOutMarker;
+
+    /**
+     * 结束后再等多久卸载（秒），给异步写库留时间
+     */
+    @Value("${hmdp.seckill.unload-delay-seconds:300}")
+    private long unloadDelaySeconds;
+
+    //voucherId -> {开始时间毫秒, 结束时间毫秒}
+    private final Map<Long, long[]> windows = new ConcurrentHashMap<>();
+    //voucherId -> 卸载任务
+    private final Map<Long, Timeout> unloadTasks = new ConcurrentHashMap<>();
+    //已经卸载的券：voucherId -> 结束时间毫秒，只在卸载时放进来
+    private final Cache<Long, Long> endTimes = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterWrite(10, TimeUnit.MINUTES)
+            .build();
+    private HashedWheelTimer timer;
+
+    @PostConstruct
+    private void init() {
+        //1秒一格，512格，更远的任务靠轮数
+        timer = new HashedWheelTimer(new DefaultThreadFactory("seckill-window", true), 1, TimeUnit.SECONDS, 512);
+        //别的节点新增了秒杀券，从Redis里把它的时间窗口读过来
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            try {
+                loadFromRedis(Long.parseLong(body));
+            } catch (Exception e) {
+                log.warn("加载秒杀时间窗口失败，voucherId={}", body, e);
+            }
+        }, new ChannelTopic(SECKILL_STOCK_CHANNEL));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        timer.stop();
+    }
+
+    /**
+     * 下单前的时间判断，纯内存操作
+     * @param voucherId 传入优惠券id
+     * @return 不能下单时返回原因，可以下单返回null
+     */
+    public String check(Long voucherId) {
+        long[] window = windows.get(voucherId);
+        long now = System.currentTimeMillis();
+        if (window == null) {
+            //已经结束卸载了的券；其他没预热的券，说明离开始还早（或者券不存在）
+            Long end = endTimes.getIfPresent(voucherId);
+            return end != null && now > end ? "秒杀已经结束！" : "秒杀尚未开始！";
+        }
+        if (now < window[0]) {
+            return "秒杀尚未开始！";
+        }
+        if (now > window[1]) {
+            return "秒杀已经结束！";
+        }
+        return null;
+    }
+
+    public boolean isLoaded(Long voucherId) {
+        return windows.containsKey(voucherId);
+    }
+
+    /**
+     * 登记时间窗口：写入Redis（给其他节点读）和本地索引，并安排结束后卸载
+     * @param voucherId 传入优惠券id
+     * @param beginTime 传入开始时间
+     * @param endTime 传入结束时间
+     */
+    public void open(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime) {
+        long begin = toMillis(beginTime);
+        long end = toMillis(endTime);
+        long ttl = Math.max(end - System.currentTimeMillis(), 0) + TimeUnit.SECONDS.toMillis(unloadDelaySeconds);
+        stringRedisTemplate.opsForValue().set(SECKILL_WINDOW_KEY + voucherId, begin + "," + end, ttl, TimeUnit.MILLISECONDS);
+        register(voucherId, begin, end);
+    }
+
+    private void loadFromRedis(Long voucherId) {
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_WINDOW_KEY + voucherId);
+        if (StrUtil.isBlank(value)) {
+            return;
+        }
+        String[] parts = value.split(",");
+        register(voucherId, Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+    }
+
+    private void register(Long voucherId, long begin, long end) {
+        windows.put(voucherId, new long[]{begin, end});
+        endTimes.invalidate(voucherId);
+        long delay = Math.max(end - System.currentTimeMillis(), 0) + TimeUnit.SECONDS.toMillis(unloadDelaySeconds);
+        Timeout old = unloadTasks.put(voucherId, timer.newTimeout(t -> unload(voucherId), delay, TimeUnit.MILLISECONDS));
+        if (old != null) {
+            old.cancel();
+        }
+    }
+
+    /**
+     * 卸载已经结束的券：删除本地索引和Redis里的库存、下单记录（多个节点都会删，删除是幂等的）
+     * @param voucherId 传入优惠券id
+     */
+    private void unload(Long voucherId) {
+        try {
+            List<String> keys = new ArrayList<>(seckillStockShards.stockKeys(voucherId));
+            keys.addAll(seckillStockShards.orderKeys(voucherId));
+            keys.add(SECKILL_SHARDS_KEY + voucherId);
+            keys.add(SECKILL_WINDOW_KEY + voucherId);
+            stringRedisTemplate.delete(keys);
+            log.info("秒杀券已结束，卸载完成，voucherId={}", voucherId);
+        } catch (Exception e) {
+            log.error("卸载秒杀券失败，voucherId={}", voucherId, e);
+        } finally {
+            long[] window = windows.remove(voucherId);
+            if (window != null) {
+                endTimes.put(voucherId, window[1]);
+            }
+            unloadTasks.remove(voucherId);
+            seckillStockShards.evict(voucherId);
+            seckillSoldOutMarker.clearLocal(voucherId);
+        }
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
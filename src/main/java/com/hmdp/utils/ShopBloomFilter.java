@@ -0,0 +1,176 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 店铺id的布隆过滤器，查缓存前先判断，不存在的id直接返回，不会在Redis里留下空值、也不会查数据库
+ * 启动时从Redis加载，Redis里没有就从tb_shop构建；新增店铺时添加并通知其他节点；定期重建，控制误判率
+ * 还没加载好之前不拦截
+ */
+@Slf4j
+@Component
+public class ShopBloomFilter {
+
+    private static final String MESSAGE_RELOAD = "reload";
+    private static final String MESSAGE_ADD = "add:";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.bloom.shop.enabled:true}")
+    private boolean enabled;
+    /**
+     * 预计店铺数，超过以后误判率会上升
+     */
+    @Value("${hmdp.bloom.shop.expected-insertions:1000000}")
+    private long expectedInsertions;
+    /**
+     * 期望的误判率
+     */
+    @Value("${hmdp.bloom.shop.fpp:0.01}")
+    private double fpp;
+    /**
+     * 构建时每次从数据库读多少个id
+     */
+    @Value("${hmdp.bloom.shop.chunk-size:5000}")
+    private int chunkSize;
+
+    private RedisBloomFilter filter;
+    private volatile boolean ready;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        filter = new RedisBloomFilter(stringRedisTemplate, BLOOM_SHOP_KEY, expectedInsertions, fpp);
+        //1、其他节点新增了店铺或者重建了位图
+        redisMessageListenerContainer.addMessageListener((message, pattern) ->
+                onMessage(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(BLOOM_SHOP_CHANNEL));
+        //2、Redis里有就直接加载，没有就构建
+        try {
+            if (filter.load()) {
+                ready = true;
+                log.info("店铺布隆过滤器加载完成");
+            } else {
+                rebuild();
+            }
+        } catch (Exception e) {
+            //加载失败不影响启动，没准备好之前不拦截，等下次定时重建
+            log.error("店铺布隆过滤器加载失败", e);
+        }
+        //3、注册到缓存工具类，查店铺缓存前先判断
+        cacheClient.registerBloomFilter(CACHE_SHOP_KEY, id -> !ready || filter.mightContain(id));
+        cacheClient.registerBloomFilter(CACHE_SHOP_HASH_KEY, id -> !ready || filter.mightContain(id));
+    }
+
+    /**
+     * 新增店铺后调用
+     * @param id 传入店铺id
+     */
+    public void add(Long id) {
+        if (filter == null) {
+            return;
+        }
+        filter.put(id);
+        stringRedisTemplate.convertAndSend(BLOOM_SHOP_CHANNEL, MESSAGE_ADD + id);
+    }
+
+    /**
+     * 定期重建：删掉的店铺不会留在位图里，误判率回到预期
+     */
+    @Scheduled(initialDelayString = "${hmdp.bloom.shop.rebuild-ms:3600000}", fixedDelayString = "${hmdp.bloom.shop.rebuild-ms:3600000}")
+    public void scheduledRebuild() {
+        if (filter == null) {
+            return;
+        }
+        try {
+            rebuild();
+        } catch (Exception e) {
+            log.error("店铺布隆过滤器重建失败", e);
+        }
+    }
+
+    private void rebuild() {
+        //多个节点只让一个重建，其他节点收到通知后加载
+        String lockKey = "lock:" + BLOOM_SHOP_KEY;
+        Boolean isLock = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, "1", 10, TimeUnit.MINUTES);
+        if (!BooleanUtil.isTrue(isLock)) {
+            return;
+        }
+        try {
+            //1、分块读出所有店铺id，放进新的位图
+            AtomicLongArray bits = filter.newBits();
+            long lastId = 0;
+            int count = 0;
+            while (true) {
+                List<Long> ids = nextIds(lastId);
+                for (Long id : ids) {
+                    filter.putTo(bits, id);
+                }
+                count += ids.size();
+                if (!ids.isEmpty()) {
+                    lastId = ids.get(ids.size() - 1);
+                }
+                if (ids.size() < chunkSize) {
+                    break;
+                }
+            }
+            //2、整体替换Redis和本地的位图
+            filter.publish(bits);
+            ready = true;
+            //3、构建期间新增的店铺（id更大）补进去
+            for (Long id : nextIds(lastId)) {
+                filter.put(id);
+            }
+            stringRedisTemplate.convertAndSend(BLOOM_SHOP_CHANNEL, MESSAGE_RELOAD);
+            log.info("店铺布隆过滤器重建完成，店铺数：{}", count);
+        } finally {
+            stringRedisTemplate.delete(lockKey);
+        }
+    }
+
+    private List<Long> nextIds(long lastId) {
+        return shopService.listObjs(new QueryWrapper<Shop>()
+                .select("id")
+                .gt("id", lastId)
+                .orderByAsc("id")
+                .last("limit " + chunkSize), o -> ((Number) o).longValue());
+    }
+
+    private void onMessage(String body) {
+        if (MESSAGE_RELOAD.equals(body)) {
+            if (filter.load()) {
+                ready = true;
+            }
+        } else if (body.startsWith(MESSAGE_ADD)) {
+            filter.putLocal(body.substring(MESSAGE_ADD.length()));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+
+/**
+ * 启动时预热店铺缓存，避免发布后冷缓存把流量都打到MySQL
+ * ApplicationRunner在应用报告就绪（readiness）之前执行，预热完才接流量
+ * 按销量或评分分块读出前N个店铺的id，交给几个线程批量写入：每块一次MGET，已经在缓存里的跳过，
+ * 没有的一次查数据库，再用管道写回Redis（开启了本地缓存也一起写入）。
+ * 写回时每个key的过期时间单独加随机值（hmdp.cache.ttl-jitter-ratio），预热的这批key不会在同一时刻一起过期
+ * 预热失败或超时不影响启动
+ */
+@Slf4j
+@Component
+public class ShopCacheWarmer implements ApplicationRunner {
+
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private CacheClient cacheClient;
+
+    @Value("${hmdp.cache.warmup.enabled:true}")
+    private boolean enabled;
+    /**
+     * 预热多少个店铺
+     */
+    @Value("${hmdp.cache.warmup.top-n:1000}")
+    private int topN;
+    /**
+     * 按什么排序取前N个：sold（销量）或 score（评分）
+     */
+    @Value("${hmdp.cache.warmup.order-by:sold}")
+    private String orderBy;
+    /**
+     * 只预热这些类型的店铺，不配置就是所有类型
+     */
+    @Value("${hmdp.cache.warmup.type-ids:}")
+    private List<Long> typeIds;
+    /**
+     * 每块多少个店铺，不能超过一次批量查询的上限
+     */
+    @Value("${hmdp.cache.warmup.chunk-size:100}")
+    private int chunkSize;
+    /**
+     * 写缓存的线程数
+     */
+    @Value("${hmdp.cache.warmup.threads:4}")
+    private int threads;
+    /**
+     * 最多等多久，超时就不等了，直接启动
+     */
+    @Value("${hmdp.cache.warmup.timeout-seconds:60}")
+    private long timeoutSeconds;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled || topN <= 0) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        //只允许这两个列，防止配置写进SQL
+        String column = "score".equals(orderBy) ? "score" : "sold";
+        int chunk = Math.min(chunkSize, SystemConstants.MAX_BATCH_SIZE);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new DefaultThreadFactory("cache-warmup", true));
+        AtomicInteger done = new AtomicInteger();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        try {
+            //1、分块读出店铺id，每读一块就交给线程池写缓存
+            for (int offset = 0; offset < topN; offset += chunk) {
+                List<Long> ids = nextIds(column, offset, Math.min(chunk, topN - offset));
+                if (ids.isEmpty()) {
+                    break;
+                }
+                futures.add(CompletableFuture.runAsync(() -> {
+                    //2、一次MGET，缓存里没有的一次查数据库，管道写回
+                    cacheClient.queryBatchWithPassThrough(CACHE_SHOP_KEY, ids, Shop.class,
+                            missIds -> shopService.listByIds(missIds).stream()
+                                    .collect(Collectors.toMap(Shop::getId, Function.identity())),
+                            CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                    log.info("店铺缓存预热进度：{}/{}", done.addAndGet(ids.size()), topN);
+                }, pool));
+                if (ids.size() < chunk) {
+                    break;
+                }
+            }
+            //3、等所有块写完
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(timeoutSeconds, TimeUnit.SECONDS);
+            log.info("店铺缓存预热完成，店铺数：{}，耗时：{}ms", done.get(), System.currentTimeMillis() - begin);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("店铺缓存预热失败，已预热：{}", done.get(), e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private List<Long> nextIds(String column, int offset, int limit) {
+        QueryWrapper<Shop> wrapper = new QueryWrapper<Shop>()
+                .select("id")
+                .in(typeIds != null && !typeIds.isEmpty(), "type_id", typeIds)
+                .orderByDesc(column)
+                .orderByAsc("id")
+                .last("limit " + offset + "," + limit);
+        return shopService.listObjs(wrapper, o -> ((Number) o).longValue());
+    }
+}
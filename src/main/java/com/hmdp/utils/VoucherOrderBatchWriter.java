@@ -0,0 +1,266 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀订单批量写入（组提交）
+ * 订单先放进有界队列，写线程攒够一批或者到时间后，一次多行INSERT，
+ * 再按优惠券汇总成一条 UPDATE tb_seckill_voucher SET stock = stock - n，放在同一个事务里提交
+ */
+@Slf4j
+@Component
+public class VoucherOrderBatchWriter {
+
+    /**
+     * 队列里的一条订单，callback在订单写入数据库后调用（比如用来ACK消息），
+     * onRejected在数据库拒绝（重复下单、库存不足）时、callback之前调用，onFailure在逐条写入也失败时调用（都可以为null）
+     */
+    private static class Entry {
+        private final VoucherOrder order;
+        private final Runnable callback;
+        private final Runnable onRejected;
+        private final Runnable onFailure;
+
+        private Entry(VoucherOrder order, Runnable callback, Runnable onRejected, Runnable onFailure) {
+            this.order = order;
+            this.callback = callback;
+            this.onRejected = onRejected;
+            this.onFailure = onFailure;
+        }
+    }
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+    @Resource
+    private TransactionTemplate transactionTemplate;
+    //批量失败时逐条写入兜底
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private MeterRegistry meterRegistry;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private OrderTimeoutQueue orderTimeoutQueue;
+    @Resource
+    private SeckillStockReturner seckillStockReturner;
+
+    /**
+     * 每批最多多少条
+     */
+    @Value("${hmdp.seckill.batch.size:500}")
+    private int batchSize;
+    /**
+     * 最多攒多久就刷一次（毫秒）
+     */
+    @Value("${hmdp.seckill.batch.interval-ms:50}")
+    private long flushIntervalMs;
+    /**
+     * 队列容量，满了以后submit会阻塞（背压）
+     */
+    @Value("${hmdp.seckill.batch.queue-capacity:10000}")
+    private int queueCapacity;
+
+    private BlockingQueue<Entry> queue;
+    private Thread writerThread;
+    private volatile boolean running = true;
+
+    private DistributionSummary batchSizeSummary;
+    private Timer flushTimer;
+    private Counter fallbackCounter;
+
+    @PostConstruct
+    private void init() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        batchSizeSummary = DistributionSummary.builder("seckill.order.batch.size")
+                .description("每次刷盘的订单条数")
+                .register(meterRegistry);
+        flushTimer = Timer.builder("seckill.order.flush.latency")
+                .description("一次批量写入的耗时")
+                .register(meterRegistry);
+        fallbackCounter = Counter.builder("seckill.order.flush.fallback")
+                .description("批量写入失败改为逐条写入的次数")
+                .register(meterRegistry);
+        Gauge.builder("seckill.order.queue.depth", queue, BlockingQueue::size)
+                .description("等待写入的订单数")
+                .register(meterRegistry);
+
+        writerThread = new Thread(this::runWriter, "voucher-order-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        //等写线程把队列里剩下的订单刷完
+        writerThread.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    /**
+     * 提交一个订单，队列满时阻塞，直到有空位
+     * @param order 传入订单
+     * @param callback 写入数据库后的回调，写入失败不会调用
+     */
+    public void submit(VoucherOrder order, Runnable callback) throws InterruptedException {
+        submit(order, callback, null);
+    }
+
+    /**
+     * 提交一个订单，队列满时阻塞，直到有空位
+     * @param order 传入订单
+     * @param callback 写入数据库后的回调
+     * @param onFailure 逐条写入也失败时的回调（没有别的重试机制时用，比如本地模式），在写线程里调用
+     */
+    public void submit(VoucherOrder order, Runnable callback, Runnable onFailure) throws InterruptedException {
+        submit(order, callback, null, onFailure);
+    }
+
+    /**
+     * 提交一个订单，队列满时阻塞，直到有空位
+     * @param order 传入订单
+     * @param callback 写入数据库后的回调，被拒绝时也会调用（已经有最终结果，不用重试）
+     * @param onRejected 数据库拒绝时在callback之前调用，这时Redis里的库存已经还回去了
+     * @param onFailure 逐条写入也失败时的回调
+     */
+    public void submit(VoucherOrder order, Runnable callback, Runnable onRejected, Runnable onFailure) throws InterruptedException {
+        queue.put(new Entry(order, callback, onRejected, onFailure));
+    }
+
+    private void runWriter() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                //1、等第一条订单
+                Entry first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                //2、攒一批：数量够了或者时间到了就刷
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) {
+                        break;
+                    }
+                    Entry next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                //3、写入数据库
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("批量写入订单异常", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Entry> batch) {
+        batchSizeSummary.record(batch.size());
+        List<VoucherOrder> orders = new ArrayList<>(batch.size());
+        //按优惠券汇总要扣的库存
+        Map<Long, Integer> stockDelta = new HashMap<>();
+        for (Entry entry : batch) {
+            orders.add(entry.order);
+            stockDelta.merge(entry.order.getVoucherId(), 1, Integer::sum);
+        }
+        long begin = System.nanoTime();
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                //1、多行INSERT
+                voucherOrderMapper.insertBatch(orders);
+                //2、每个优惠券一条UPDATE
+                stockDelta.forEach((voucherId, count) -> {
+                    if (seckillVoucherMapper.decreaseStock(voucherId, count) == 0) {
+                        throw new IllegalStateException("库存不足，voucherId=" + voucherId);
+                    }
+                });
+            });
+        } catch (Exception e) {
+            //批量失败（重复投递导致主键冲突、库存不一致等），整批回滚，逐条写入，逐条做幂等判断
+            log.warn("批量写入失败，改为逐条写入，size={}，原因：{}", batch.size(), e.getMessage());
+            fallbackCounter.increment();
+            flushOneByOne(batch);
+            return;
+        } finally {
+            flushTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        }
+        //记录订单状态，客户端轮询时直接从Redis拿到；进入超时取消队列
+        seckillOrderStatus.markPersisted(orders);
+        orderTimeoutQueue.addAll(orderIds(batch));
+        for (Entry entry : batch) {
+            entry.callback.run();
+        }
+    }
+
+    private static List<Long> orderIds(List<Entry> batch) {
+        List<Long> ids = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            ids.add(entry.order.getId());
+        }
+        return ids;
+    }
+
+    private void flushOneByOne(List<Entry> batch) {
+        for (Entry entry : batch) {
+            try {
+                if (voucherOrderService.createVoucherOrder(entry.order)) {
+                    seckillOrderStatus.markPersisted(Collections.singletonList(entry.order));
+                    orderTimeoutQueue.addAll(Collections.singletonList(entry.order.getId()));
+                } else {
+                    //业务上被拒绝（重复下单、库存不足），不用重试；下单时Redis里扣的库存和下单记录要还回去，
+                    //否则Redis和数据库对不上，消息ACK以后就没有机会再补（重复投递时脚本不会多还）
+                    seckillStockReturner.returnStock(Collections.singletonList(entry.order));
+                    seckillOrderStatus.markFailed(entry.order);
+                    if (entry.onRejected != null) {
+                        entry.onRejected.run();
+                    }
+                }
+                entry.callback.run();
+            } catch (Exception e) {
+                //不调用回调，消息留在pending-list里等待重试；没有pending-list的交给onFailure
+                log.error("写入订单失败，orderId={}", entry.order.getId(), e);
+                if (entry.onFailure != null) {
+                    entry.onFailure.run();
+                }
+            }
+        }
+    }
+}
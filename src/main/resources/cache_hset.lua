@@ -0,0 +1,15 @@
+-- 查数据库后把对象按字段写成hash，期间数据被修改过（版本号变了）就不写，防止旧数据覆盖
+-- KEYS[1] 缓存key，KEYS[2] 版本号key（hash tag和缓存key同一个slot）
+-- ARGV[1] 过期时间（秒，0表示不过期），ARGV[2] 查数据库之前读到的版本号（没有是0），ARGV[3]之后是 字段1 值1 字段2 值2 ...
+local version = redis.call('get', KEYS[2]) or '0'
+if (version ~= ARGV[2]) then
+    return 0
+end
+-- 先删掉，不留下旧的字段
+redis.call('del', KEYS[1])
+redis.call('hmset', KEYS[1], unpack(ARGV, 3))
+local ttl = tonumber(ARGV[1])
+if (ttl > 0) then
+    redis.call('expire', KEYS[1], ttl)
+end
+return 1
@@ -0,0 +1,24 @@
+-- 查数据库后写回缓存，期间数据被修改过（版本号变了）就不写，防止旧数据覆盖
+-- KEYS[1] 缓存key，KEYS[2] 版本号key（hash tag和缓存key同一个slot）
+-- KEYS[3] 可选，缓存时间到期的时间戳key（stale-while-revalidate用，同一个slot）
+-- ARGV[1] 缓存值，ARGV[2] 过期时间（秒，0表示不过期），ARGV[3] 查数据库之前读到的版本号（没有是0）
+-- ARGV[4] 有KEYS[3]时是缓存时间到期的时间戳（毫秒）
+local version = redis.call('get', KEYS[2]) or '0'
+if (version ~= ARGV[3]) then
+    return 0
+end
+local ttl = tonumber(ARGV[2])
+if (ttl > 0) then
+    redis.call('set', KEYS[1], ARGV[1], 'EX', ttl)
+else
+    redis.call('set', KEYS[1], ARGV[1])
+end
+-- 到期时间和值一起写、一起过期
+if (KEYS[3]) then
+    if (ttl > 0) then
+        redis.call('set', KEYS[3], ARGV[4], 'EX', ttl)
+    else
+        redis.call('set', KEYS[3], ARGV[4])
+    end
+end
+return 1
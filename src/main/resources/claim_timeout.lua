@@ -0,0 +1,23 @@
+-- 从延迟队列里批量领取到期的订单
+-- KEYS[1] 延迟队列（score是超时时间），KEYS[2] 处理中队列（score是租约到期时间）
+-- ARGV[1] 当前时间，ARGV[2] 最多领取多少条，ARGV[3] 租约到期时间
+local queueKey = KEYS[1]
+local processingKey = KEYS[2]
+local now = ARGV[1]
+local limit = ARGV[2]
+local leaseUntil = ARGV[3]
+
+-- 1、租约过期的（处理的节点宕机了）放回延迟队列
+local expired = redis.call('zrangebyscore', processingKey, '-inf', now, 'LIMIT', 0, limit)
+for i, id in ipairs(expired) do
+    redis.call('zrem', processingKey, id)
+    redis.call('zadd', queueKey, now, id)
+end
+
+-- 2、领取到期的订单，移到处理中队列
+local ids = redis.call('zrangebyscore', queueKey, '-inf', now, 'LIMIT', 0, limit)
+for i, id in ipairs(ids) do
+    redis.call('zrem', queueKey, id)
+    redis.call('zadd', processingKey, leaseUntil, id)
+end
+return ids
@@ -0,0 +1,16 @@
+-- 取消订单后把库存还给Redis
+-- KEYS[1] 库存key，KEYS[2] 下单记录key，ARGV 要退还的用户id
+-- 只有用户还在下单记录里才退还，重复执行不会多还；券已经卸载（库存key不存在）时只删除下单记录
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local exists = redis.call('exists', stockKey) == 1
+local count = 0
+for i, userId in ipairs(ARGV) do
+    if (redis.call('srem', orderKey, userId) == 1) then
+        count = count + 1
+    end
+end
+if (exists and count > 0) then
+    redis.call('incrby', stockKey, count)
+end
+return count
@@ -0,0 +1,40 @@
+-- 1、参数列表
+-- 1.1、优惠券id
+local voucherId = ARGV[1]
+-- 1.2、用户id
+local userId = ARGV[2]
+-- 1.3、订单id
+local orderId = ARGV[3]
+-- 1.4、订单状态的过期时间（秒）
+local statusTtl = ARGV[4]
+
+-- 2、数据key
+-- 2.1、库存key
+local stockKey = KEYS[1]
+-- 2.2、订单key（记录已下单的用户）
+local orderKey = KEYS[2]
+-- 2.3、消息队列key
+local streamKey = KEYS[3]
+-- 2.4、订单状态key
+local statusKey = KEYS[4]
+
+-- 3、脚本业务
+-- 3.1、判断库存是否充足 get stockKey
+if (tonumber(redis.call('get', stockKey) or '0') <= 0) then
+    -- 库存不足，返回1
+    return 1
+end
+-- 3.2、判断用户是否下单 sismember orderKey userId
+if (redis.call('sismember', orderKey, userId) == 1) then
+    -- 存在，说明是重复下单，返回2
+    return 2
+end
+-- 3.3、扣库存 incrby stockKey -1
+redis.call('incrby', stockKey, -1)
+-- 3.4、下单（保存用户）sadd orderKey userId
+redis.call('sadd', orderKey, userId)
+-- 3.5、发送消息到队列中 XADD stream.orders * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 3.6、记录订单状态：排队中
+redis.call('set', statusKey, 'QUEUED', 'EX', statusTtl)
+return 0
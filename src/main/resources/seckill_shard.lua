@@ -0,0 +1,25 @@
+-- 分片库存的秒杀脚本：只操作用户所属分片的库存和下单记录，两个key在同一个slot
+-- 1、参数列表
+-- 1.1、用户id
+local userId = ARGV[1]
+
+-- 2、数据key
+-- 2.1、分片库存key
+local stockKey = KEYS[1]
+-- 2.2、分片订单key（记录已下单的用户）
+local orderKey = KEYS[2]
+
+-- 3、脚本业务
+-- 3.1、判断用户是否下单，先判断这个，分片没库存时调用方还要去别的分片拿
+if (redis.call('sismember', orderKey, userId) == 1) then
+    return 2
+end
+-- 3.2、保存用户：有库存是下单，没库存是先占住下单记录，同一用户的并发请求在这里就会被拦住
+redis.call('sadd', orderKey, userId)
+-- 3.3、判断分片库存是否充足，没库存返回3，调用方去别的分片拿，拿不到再删掉下单记录
+if (tonumber(redis.call('get', stockKey) or '0') <= 0) then
+    return 3
+end
+-- 3.4、扣库存
+redis.call('incrby', stockKey, -1)
+return 0
@@ -0,0 +1,7 @@
+-- 从一个分片拿一个库存，库存大于0才扣减
+-- 成功返回1，没有库存返回0
+if (tonumber(redis.call('get', KEYS[1]) or '0') <= 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], -1)
+return 1
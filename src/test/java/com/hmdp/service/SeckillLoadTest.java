@@ -0,0 +1,171 @@
+package com.hmdp.service;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 秒杀压测：多个用户并发抢同一张券，统计吞吐量和延迟，并核对数据库里有没有超卖、有没有一人多单
+ * 默认不跑，mvn test -Ploadtest 时才跑，配置见 application-loadtest.yaml
+ */
+@Tag("loadtest")
+@ActiveProfiles("loadtest")
+@SpringBootTest
+public class SeckillLoadTest {
+
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.mode:redis}")
+    private String mode;
+    @Value("${loadtest.threads:200}")
+    private int threads;
+    @Value("${loadtest.users:5000}")
+    private int users;
+    @Value("${loadtest.requests-per-user:2}")
+    private int requestsPerUser;
+    @Value("${loadtest.stock:1000}")
+    private int stock;
+    @Value("${loadtest.shards:1}")
+    private int shards;
+    @Value("${loadtest.persist-timeout-seconds:60}")
+    private long persistTimeoutSeconds;
+
+    @Test
+    void testSeckill() throws InterruptedException {
+        //1、清空压测用的Redis库，新建一张正在秒杀的券
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.flushDb();
+            return null;
+        });
+        Long voucherId = addVoucher();
+
+        //2、并发抢购，每个用户请求多次
+        int total = users * requestsPerUser;
+        long[] latencies = new long[total];
+        AtomicInteger index = new AtomicInteger();
+        AtomicInteger success = new AtomicInteger();
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        CountDownLatch latch = new CountDownLatch(users);
+        long begin = System.nanoTime();
+        for (int u = 0; u < users; u++) {
+            long userId = u + 1;
+            es.submit(() -> {
+                UserDTO user = new UserDTO();
+                user.setId(userId);
+                UserHolder.saveUser(user);
+                try {
+                    for (int r = 0; r < requestsPerUser; r++) {
+                        long start = System.nanoTime();
+                        Result result = voucherOrderService.seckillVoucher(voucherId);
+                        latencies[index.getAndIncrement()] = System.nanoTime() - start;
+                        if (Boolean.TRUE.equals(result.getSuccess())) {
+                            success.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    UserHolder.removeUser();
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long elapsed = System.nanoTime() - begin;
+        es.shutdown();
+
+        //3、等异步写库完成
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(persistTimeoutSeconds);
+        List<Long> userIds = orderedUsers(voucherId);
+        while (userIds.size() < success.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(200);
+            userIds = orderedUsers(voucherId);
+        }
+        long persistElapsed = System.nanoTime() - begin;
+
+        //4、核对：订单数不能超过库存，同一个用户只能有一单，数据库剩余库存 + 订单数 = 初始库存
+        Set<Long> distinct = new HashSet<>(userIds);
+        int oversell = Math.max(0, userIds.size() - stock);
+        int duplicates = userIds.size() - distinct.size();
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+
+        //5、输出报告
+        Arrays.sort(latencies, 0, index.get());
+        System.out.println("========== 秒杀压测（mode=" + mode + "，shards=" + shards + "） ==========");
+        System.out.println("用户数 = " + users + "，请求数 = " + total + "，线程数 = " + threads + "，库存 = " + stock);
+        System.out.println("TPS = " + String.format("%.1f", total * 1e9 / elapsed));
+        System.out.println("p50 = " + millis(percentile(latencies, index.get(), 0.50)) + "ms"
+                + "，p99 = " + millis(percentile(latencies, index.get(), 0.99)) + "ms"
+                + "，max = " + millis(latencies[index.get() - 1]) + "ms");
+        System.out.println("下单成功 = " + success.get() + "，写入数据库 = " + userIds.size()
+                + "，全部写完耗时 = " + millis(persistElapsed) + "ms");
+        System.out.println("超卖 = " + oversell + "，一人多单 = " + duplicates
+                + "，数据库剩余库存 = " + seckillVoucher.getStock());
+
+        assertEquals(0, oversell);
+        assertEquals(0, duplicates);
+        assertEquals(success.get(), userIds.size());
+        assertEquals(Math.min(stock, users), userIds.size());
+        assertEquals(stock, seckillVoucher.getStock() + userIds.size());
+    }
+
+    private Long addVoucher() {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(stock);
+        voucher.setShards(shards);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    private List<Long> orderedUsers(Long voucherId) {
+        return voucherOrderService.listObjs(new QueryWrapper<VoucherOrder>()
+                .select("user_id")
+                .eq("voucher_id", voucherId), o -> ((Number) o).longValue());
+    }
+
+    private static long percentile(long[] sorted, int size, double p) {
+        return sorted[Math.min(size - 1, (int) Math.ceil(p * size) - 1)];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,76 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BinaryCacheCodecTest {
+
+    private final JsonCacheCodec json = new JsonCacheCodec();
+    private final BinaryCacheCodec binary = new BinaryCacheCodec(json);
+
+    private Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setArea("大关")
+                .setX(120.149192)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setScore(37)
+                .setUpdateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+    }
+
+    @Test
+    void testRoundTrip() {
+        Shop shop = shop();
+        byte[] raw = binary.encode(shop);
+        Shop decoded = binary.decode(raw, Shop.class);
+        assertEquals(shop, decoded);
+        assertNull(decoded.getAddress());
+        //比json小
+        assertTrue(raw.length < json.encode(shop).length);
+    }
+
+    @Test
+    void testLogicalExpire() {
+        Shop shop = shop();
+        long expireMillis = System.currentTimeMillis() + 10_000;
+        CacheCodec.LogicalEntry entry = binary.decodeLogical(binary.encodeLogical(shop, expireMillis, 35));
+        assertEquals(expireMillis, entry.getExpireMillis());
+        assertEquals(35, entry.getDeltaMillis());
+        assertEquals(shop, entry.getValue(Shop.class));
+    }
+
+    @Test
+    void testReadOldLogicalHeader() {
+        //加重建耗时之前写的：[0xB1][过期时间 8字节][结构哈希][字段]
+        Shop shop = shop();
+        long expireMillis = System.currentTimeMillis() + 10_000;
+        byte[] value = binary.encode(shop);
+        ByteBuffer old = ByteBuffer.allocate(9 + value.length - 1);
+        old.put((byte) 0xB1).putLong(expireMillis).put(value, 1, value.length - 1);
+        CacheCodec.LogicalEntry entry = binary.decodeLogical(old.array());
+        assertEquals(expireMillis, entry.getExpireMillis());
+        assertEquals(0, entry.getDeltaMillis());
+        assertEquals(shop, entry.getValue(Shop.class));
+    }
+
+    @Test
+    void testReadJson() {
+        //以前写的json还能读
+        Shop shop = shop();
+        assertEquals(shop, binary.decode(json.encode(shop), Shop.class));
+        assertEquals(shop, binary.decodeLogical(json.encodeLogical(shop, System.currentTimeMillis(), 0)).getValue(Shop.class));
+        //不兼容json时解码失败，当作未命中
+        assertThrows(IllegalArgumentException.class, () -> new BinaryCacheCodec(null).decode(json.encode(shop), Shop.class));
+    }
+}
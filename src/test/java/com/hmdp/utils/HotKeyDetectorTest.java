@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HotKeyDetectorTest {
+
+    @Test
+    void testHotKey() {
+        HotKeyDetector detector = new HotKeyDetector(1.0, 100, 3, 60_000, 6);
+        //一个热点key，其他key各访问几次
+        for (int i = 0; i < 200; i++) {
+            detector.record("cache:shop:1");
+            detector.record("cache:shop:" + (i % 50 + 2));
+        }
+        assertTrue(detector.isHot("cache:shop:1"));
+        assertFalse(detector.isHot("cache:shop:2"));
+        List<Map.Entry<String, Long>> top = detector.topKeys();
+        assertEquals(3, top.size());
+        assertEquals("cache:shop:1", top.get(0).getKey());
+        assertTrue(top.get(0).getValue() >= 200);
+    }
+
+    @Test
+    void testWindowExpire() throws InterruptedException {
+        //窗口200毫秒，过了窗口以后不再是热点
+        HotKeyDetector detector = new HotKeyDetector(1.0, 10, 3, 200, 2);
+        for (int i = 0; i < 20; i++) {
+            detector.record("cache:shop:1");
+        }
+        assertTrue(detector.isHot("cache:shop:1"));
+        Thread.sleep(300);
+        assertFalse(detector.record("cache:shop:1"));
+    }
+}
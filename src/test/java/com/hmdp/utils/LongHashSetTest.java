@@ -0,0 +1,34 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class LongHashSetTest {
+
+    @Test
+    void testAgainstHashSet() {
+        //随机增删查，和HashSet的结果对比
+        Random random = new Random(1);
+        LongHashSet set = new LongHashSet(4);
+        Set<Long> expected = new HashSet<>();
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(1000) - 100;
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.add(key), set.add(key));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), set.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.contains(key), set.contains(key));
+            }
+            assertEquals(expected.size(), set.size());
+        }
+    }
+}
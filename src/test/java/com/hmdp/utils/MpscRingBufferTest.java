@@ -0,0 +1,68 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MpscRingBufferTest {
+
+    private static class Slot {
+        private long value;
+    }
+
+    @Test
+    void testFull() {
+        MpscRingBuffer<Slot> ring = new MpscRingBuffer<>(4, Slot::new);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, ring.tryClaim());
+        }
+        //满了，消费者释放以后才能继续领取
+        assertEquals(-1, ring.tryClaim());
+        ring.release(0);
+        assertEquals(4, ring.tryClaim());
+    }
+
+    @Test
+    void testMultiProducer() throws InterruptedException {
+        //多个线程写，一个线程读，每个值都只读到一次
+        int producers = 8;
+        int perProducer = 100000;
+        MpscRingBuffer<Slot> ring = new MpscRingBuffer<>(1024, Slot::new);
+        ExecutorService es = Executors.newFixedThreadPool(producers);
+        CountDownLatch latch = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            es.submit(() -> {
+                for (int i = 1; i <= perProducer; i++) {
+                    long seq;
+                    while ((seq = ring.tryClaim()) < 0) {
+                        Thread.yield();
+                    }
+                    ring.get(seq).value = i;
+                    ring.publish(seq);
+                }
+                latch.countDown();
+            });
+        }
+        long sum = 0;
+        long next = 0;
+        long total = (long) producers * perProducer;
+        while (next < total) {
+            if (ring.isPublished(next)) {
+                sum += ring.get(next).value;
+                ring.release(next);
+                next++;
+            } else {
+                Thread.yield();
+            }
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        es.shutdown();
+        assertEquals((long) producers * perProducer * (perProducer + 1) / 2, sum);
+    }
+}